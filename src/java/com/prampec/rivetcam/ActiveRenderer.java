@@ -0,0 +1,228 @@
+package com.prampec.rivetcam;
+
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.Graphics;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Paints a canvas from a dedicated thread through a BufferStrategy,
+ * instead of the Swing repaint manager. A frame is rendered when
+ * requested, at most once per display refresh, so a live frame arriving
+ * from the camera is shown by the next refresh.
+ */
+public class ActiveRenderer
+{
+    private static final Logger logger =
+        LogManager.getLogger(ActiveRenderer.class);
+
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    private final Canvas canvas;
+    private final Consumer<Graphics> painter;
+    private final long periodNs;
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile boolean running = false;
+
+    // -- Guarded by lock.
+    private boolean requested = false;
+    private long coalescedCount = 0;
+
+    // -- Accessed from the render thread only.
+    private long renderedCount = 0;
+    private long lateCount = 0;
+    private long renderNsTotal = 0;
+
+    /**
+     * @param painter Paints a frame into the graphics of the back buffer.
+     * @param fps Rendered frames per second at most, 0 for the refresh
+     * rate of the display.
+     */
+    public ActiveRenderer(Canvas canvas, Consumer<Graphics> painter, int fps)
+    {
+        this.canvas = canvas;
+        this.painter = painter;
+        int rate = fps > 0 ? fps : getRefreshRate();
+        this.periodNs = TimeUnit.SECONDS.toNanos(1) / rate;
+        canvas.setIgnoreRepaint(true);
+        canvas.setFocusable(false);
+        canvas.addComponentListener(new ComponentAdapter()
+        {
+            @Override
+            public void componentResized(ComponentEvent e)
+            {
+                requestFrame();
+            }
+        });
+    }
+
+    /**
+     * Starts rendering, if not yet started. The canvas must be displayable.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+        {
+            return;
+        }
+        canvas.createBufferStrategy(2);
+        running = true;
+        thread = new Thread(this::renderLoop, "renderer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY - 1);
+        thread.start();
+        logger.info("Active rendering at " +
+            TimeUnit.SECONDS.toNanos(1) / periodNs + " fps.");
+    }
+
+    /**
+     * Requests rendering a frame by the next refresh. Can be called from
+     * any thread.
+     */
+    public void requestFrame()
+    {
+        synchronized (lock)
+        {
+            if (requested)
+            {
+                coalescedCount += 1;
+                return;
+            }
+            requested = true;
+            lock.notifyAll();
+        }
+    }
+
+    public synchronized void shutdown()
+    {
+        running = false;
+        if (thread != null)
+        {
+            thread.interrupt();
+            try
+            {
+                thread.join(1000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            logger.info(getStatistics());
+        }
+    }
+
+    public String getStatistics()
+    {
+        return "Active rendering: " + renderedCount + " frames rendered, " +
+            lateCount + " missed their refresh, " + coalescedCount +
+            " requests coalesced, average render " +
+            (renderedCount > 0 ? renderNsTotal / renderedCount / 1000 : 0) + " us.";
+    }
+
+    private void renderLoop()
+    {
+        long deadline = System.nanoTime();
+        try
+        {
+            while (running)
+            {
+                synchronized (lock)
+                {
+                    while (!requested)
+                    {
+                        lock.wait();
+                    }
+                }
+                // -- Do not render faster than the display refreshes.
+                long now = System.nanoTime();
+                boolean idle = now >= deadline;
+                if (!idle)
+                {
+                    TimeUnit.NANOSECONDS.sleep(deadline - now);
+                }
+                synchronized (lock)
+                {
+                    // -- Requests arriving from now on need a new frame.
+                    requested = false;
+                }
+                long start = System.nanoTime();
+                try
+                {
+                    render();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Error rendering frame.", e);
+                }
+                long end = System.nanoTime();
+                renderedCount += 1;
+                renderNsTotal += end - start;
+                if (end - start > periodNs)
+                {
+                    lateCount += 1;
+                }
+                // -- After idling, the old cadence is in the past, the next
+                //    frame still has to wait a full period.
+                deadline = idle ? end + periodNs : Math.max(deadline + periodNs, end);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // -- Shutting down.
+        }
+    }
+
+    private void render()
+    {
+        BufferStrategy strategy = canvas.getBufferStrategy();
+        if (strategy == null)
+        {
+            return;
+        }
+        do
+        {
+            do
+            {
+                Graphics g = strategy.getDrawGraphics();
+                try
+                {
+                    g.setColor(Color.black);
+                    g.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+                    painter.accept(g);
+                }
+                finally
+                {
+                    g.dispose();
+                }
+            }
+            while (strategy.contentsRestored());
+            strategy.show();
+            Toolkit.getDefaultToolkit().sync();
+        }
+        while (strategy.contentsLost());
+    }
+
+    private static int getRefreshRate()
+    {
+        if (GraphicsEnvironment.isHeadless())
+        {
+            return DEFAULT_REFRESH_RATE;
+        }
+        GraphicsDevice device = GraphicsEnvironment
+            .getLocalGraphicsEnvironment().getDefaultScreenDevice();
+        int rate = device.getDisplayMode().getRefreshRate();
+        return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : rate;
+    }
+}
@@ -30,10 +30,33 @@ public interface AppController
 
     void removeLastImage();
 
+    /**
+     * Removes the image shown in playback from the batch.
+     */
+    void removeShownImage();
+
+    /**
+     * Moves the image shown in playback within the batch.
+     *
+     * @param offset Positions to move, negative to move towards the start.
+     */
+    void moveShownImage(int offset);
+
+    /**
+     * Switches to live view, the next snapshot will be placed after the
+     * image shown in playback.
+     */
+    void insertAfterShownImage();
+
     void snapshot();
 
     void createNewBatch();
 
+    /**
+     * Stops background work of the plugins, e.g. the newest conversion.
+     */
+    void cancelBackgroundWork();
+
     void showNextImage();
 
     void showPreviousImage();
@@ -43,4 +66,8 @@ public interface AppController
     void adjustCameraControl(String controlName, int value);
 
     OnScreenDisplay getOnScreenDisplay();
+
+    void addSnapshotListener(SnapshotListener listener);
+
+    void removeSnapshotListener(SnapshotListener listener);
 }
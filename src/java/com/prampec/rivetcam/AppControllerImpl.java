@@ -7,20 +7,28 @@ import java.io.IOException;
 import java.util.*;
 import java.util.List;
 import java.util.Timer;
-import javax.imageio.ImageIO;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.*;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import au.edu.jcu.v4l4j.CaptureCallback;
-import au.edu.jcu.v4l4j.VideoFrame;
-import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+import com.prampec.rivetcam.source.CapturedFrame;
+import com.prampec.rivetcam.source.FrameListener;
+import com.prampec.rivetcam.source.FrameSourceException;
+import com.prampec.rivetcam.source.FrameSourceFactory;
 
 /**
  * Controls application lifetime actions.
  */
-public class AppControllerImpl implements AppController, CaptureCallback
+public class AppControllerImpl implements AppController, FrameListener
 {
     private static final Logger logger =
         LogManager.getLogger(AppControllerImpl.class);
@@ -30,69 +38,179 @@ public class AppControllerImpl implements AppController, CaptureCallback
         "Space - Capture", "P - Playback",
         "Backspace - Remove", "Arrows - Prev/Next",
         "O - Onion skin", "B - New batch",
+        "Delete - Remove shown", "Insert - Capture after shown",
+        "Shift+Arrows - Move shown", "C - Cancel conversion",
     };
 
-    private final int lastImagesCacheCapacity;
-
     private enum Mode {
         LIVE_VIEW,
         CAPTURING,
         PLAYBACK,
     }
 
-    private int onion = 2;
+    private int onion;
     private boolean keyInfoOn = false;
 
     private final static long snapshotDelayMs = 3000;
     private final MainFrame mainFrame;
     private final CameraManager cameraManager;
     private final OnScreenDisplay onScreenDisplay;
-    private BufferedImage image = null;
-    private boolean snapshotInProgress = false;
-    private Date snapshotEffectTime;
+    private final LatestFrameSlot liveFrameSlot = new LatestFrameSlot();
+    private final AtomicReference<PendingSnapshot> pendingSnapshot = new AtomicReference<>();
+    private final ScheduledExecutorService snapshotExecutor =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final List<SnapshotListener> snapshotListeners = new CopyOnWriteArrayList<>();
     private FileManager fileManager;
+    private final StillImageWriter stillImageWriter;
     private Map<String, Integer> savedControls;
+    /**
+     * Control values of the running camera, read once instead of for every
+     * still taken from live view. Null when they need to be read again.
+     */
+    private volatile Map<String, Integer> liveControls;
     private int activePreviewImageIndex = 0;
+    /** Position of the frame the next snapshot is inserted after, -1 to append. */
+    private volatile int insertPosition = -1;
     private Mode mode = Mode.LIVE_VIEW;
     private ConfigurationManager configurationManager;
     private java.util.Timer welcomeTimer = new Timer();
 
-    private LinkedList<BufferedImage> lastImagesCache = new LinkedList<BufferedImage>() {
-        @Override
-        public boolean add(BufferedImage bufferedImage) {
-            if (size() > lastImagesCacheCapacity) {
-                removeFirst();
-            }
-            return super.add(bufferedImage);
-        }
-    };
+    private final ImageCache lastImagesCache;
+    private final ImageCacheLoader imageCacheLoader;
+    private final DisplayImageCache displayImageCache;
+    private final OnionSkin onionSkin;
+    private final OsdOverlay osdOverlay;
+    /** Messages of the OSD being painted, used by the painter only. */
+    private final String[] osdMessages = new String[OnScreenDisplay.QUEUE_LENGTH];
 
     AppControllerImpl(
         MainFrame mainFrame, ConfigurationManager configurationManager)
     {
         this.configurationManager = configurationManager;
-        lastImagesCacheCapacity = this.configurationManager.imageCacheSize;
+        lastImagesCache = createImageCache(this.configurationManager);
+        imageCacheLoader = new ImageCacheLoader(
+            lastImagesCache,
+            !this.configurationManager.imageCacheOffHeap,
+            this.configurationManager.imageCacheLoaderThreads);
+        // -- All layers of the onion skin and the last frame must fit.
+        displayImageCache = new DisplayImageCache(Math.max(
+            this.configurationManager.displayCacheSize,
+            this.configurationManager.onionDepth + 1));
+        onion = this.configurationManager.onionDepth;
+        onionSkin = new OnionSkin(
+            this.configurationManager.onionDecay, this.configurationManager.onionMode);
         fileManager = new FileManager(this.configurationManager);
+        stillImageWriter = new StillImageWriter(
+            this.configurationManager.writerQueueSize,
+            this.configurationManager.writerOverflowPolicy,
+            this.configurationManager.writerSpillLimit,
+            this.configurationManager.writerDurability,
+            this.configurationManager.groupCommitMs,
+            new StillImageWriter.Listener() {
+                @Override
+                public void imageWritten(StillImage image, long latencyMs) {
+                    File file = image.getFile();
+                    fileManager.recordFrame(image);
+                    logger.debug("Frame " + file + " written in " + latencyMs + " ms");
+                    for (SnapshotListener listener : snapshotListeners) {
+                        listener.snapshotSaved(file);
+                    }
+                }
+
+                @Override
+                public void imageWriteFailed(StillImage image, Exception e) {
+                    File file = image.getFile();
+                    // -- The frame is not in the batch, so the cache must
+                    //    not show it either, or positions would be off.
+                    if (lastImagesCache.remove(file)) {
+                        displayImageCache.invalidate(file);
+                        onionSkin.invalidate();
+                        mainFrame.repaintImage();
+                    }
+                    for (SnapshotListener listener : snapshotListeners) {
+                        listener.snapshotFailed(file, e);
+                    }
+                }
+
+                @Override
+                public void imagesWritten() {
+                    fileManager.syncRecordedFrames();
+                }
+            });
+        addSnapshotListener(new SnapshotListener() {
+            @Override
+            public void snapshotSaved(File file) {
+                onScreenDisplay.replace("capture", "Frame saved to: " + fileManager.formatName(file));
+            }
+
+            @Override
+            public void snapshotFailed(File file, Throwable cause) {
+                onScreenDisplay.replace("capture", file != null ?
+                    "Failed to save: " + fileManager.formatName(file) :
+                    "Capture failed: " + cause.getMessage());
+            }
+        });
 
         this.mainFrame = mainFrame;
         cameraManager = new CameraManager(
-            this.configurationManager.videoDevice,
+            FrameSourceFactory.create(
+                this.configurationManager.frameSourceType,
+                this.configurationManager.videoDevice,
+                this.configurationManager.frameSourceProperties),
             this.configurationManager.preserveList,
             this.configurationManager.manualList
         );
         cameraManager.disableAuto();
 
+        osdOverlay = new OsdOverlay(this.configurationManager.osdFontSize, createKeyInfoRows());
         onScreenDisplay = new OnScreenDisplay(new OnScreenDisplay.OsdEventListener() {
             @Override
-            public void newMessageArrived(List<String> messages) {
-                mainFrame.imageContainer.repaint();
+            public void newMessageArrived(int messageCount) {
+                repaintOsd(messageCount);
             }
 
             @Override
-            public void noMessagesToDisplay() {
-                mainFrame.imageContainer.repaint();
+            public void messagesExpired(int messageCount) {
+                repaintOsd(messageCount);
             }
         });
+
+        if (this.configurationManager.resumeLastBatch) {
+            String batchName = fileManager.resumeLastBatch();
+            if (batchName != null) {
+                onScreenDisplay.add("Resumed batch: " + batchName);
+                imageCacheLoader.warmUp(fileManager.listFrameFiles());
+            }
+        }
+    }
+
+    private static ImageCache createImageCache(ConfigurationManager configurationManager)
+    {
+        if (!configurationManager.imageCacheOffHeap) {
+            return new RingImageCache(
+                configurationManager.imageCacheSize,
+                configurationManager.imageCacheMaxBytes);
+        }
+        OffHeapFrameStore store;
+        if (configurationManager.imageCacheSpillFile != null) {
+            try {
+                store = OffHeapFrameStore.mapFile(
+                    new File(configurationManager.imageCacheSpillFile),
+                    configurationManager.imageCacheOffHeapBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                    "Cannot map image cache spill file " + configurationManager.imageCacheSpillFile, e);
+            }
+        } else {
+            store = OffHeapFrameStore.allocateDirect(configurationManager.imageCacheOffHeapBytes);
+        }
+        return new OffHeapImageCache(
+            configurationManager.imageCacheSize, store,
+            configurationManager.imageCacheDecodedImages);
     }
 
     @Override
@@ -100,11 +218,10 @@ public class AppControllerImpl implements AppController, CaptureCallback
     {
         BufferedImage imageToShow;
         if (cameraManager.isCapturing() || (getMode() == Mode.CAPTURING)) {
-            imageToShow = image;
+            imageToShow = liveFrameSlot.takeImage();
             showImages((Graphics2D) g, imageToShow);
-        } else if (lastImagesCache.size() > 0) {
-            imageToShow = lastImagesCache.get(activePreviewImageIndex);
-            showImage(g, imageToShow);
+        } else if (activePreviewImageIndex < lastImagesCache.size()) {
+            showCachedImage(g, activePreviewImageIndex);
         }
         paintOsd(g);
     }
@@ -113,12 +230,14 @@ public class AppControllerImpl implements AppController, CaptureCallback
     public void showKeyInfo()
     {
         keyInfoOn = true;
+        repaintOsd(onScreenDisplay.getMessageCount());
     }
 
     @Override
     public void hideKeyInfo()
     {
         keyInfoOn = false;
+        repaintOsd(onScreenDisplay.getMessageCount());
     }
 
     public void liveViewMode()
@@ -150,29 +269,114 @@ public class AppControllerImpl implements AppController, CaptureCallback
     @Override
     public void changeOnionSkinLevel()
     {
-        onion += 1;
-        if (onion > 2) {
-            onion = 0;
-        }
+        // -- 0, 1, 2, 4, ... up to the configured depth.
+        int depth = configurationManager.onionDepth;
+        onion = onion >= depth ? 0 : Math.min(depth, Math.max(1, 2 * onion));
+        onScreenDisplay.add("onion", "Onion skin: " + onion + " frames");
     }
 
     @Override
     public void switchOnionSkin(boolean on)
     {
-        onion = on ? 2 : 0;
+        onion = on ? configurationManager.onionDepth : 0;
     }
 
     @Override
     public void removeLastImage()
     {
-        String removed = fileManager.removeLast();
+        stillImageWriter.flush();
+        // -- Positions change, the frame to insert after is no more known.
+        insertPosition = -1;
+        File removed = fileManager.removeLast();
         if (!lastImagesCache.isEmpty()) {
-            lastImagesCache.removeLast(); // TODO: might want to load images to cache.
+            lastImagesCache.removeLast();
+        }
+        if (removed != null)
+        {
+            // -- The next capture gets the same name.
+            displayImageCache.invalidate(removed);
+            onionSkin.invalidate();
+            imageCacheLoader.warmUp(fileManager.listFrameFiles());
+            onScreenDisplay.add("Last image (" + fileManager.formatName(removed) + ") was removed.");
+            for (SnapshotListener listener : snapshotListeners) {
+                listener.frameRemoved(removed);
+            }
+        }
+    }
+
+    @Override
+    public void removeShownImage()
+    {
+        if (cameraManager.isCapturing() || lastImagesCache.isEmpty()) {
+            return;
         }
+        stillImageWriter.flush();
+        int position = getShownPosition();
+        insertPosition = -1;
+        File removed = fileManager.deleteFrame(position);
         if (removed != null)
         {
-            onScreenDisplay.add("Last image (" + removed + ") was removed.");
+            reloadImageCache();
+            int count = fileManager.getFrameCount();
+            int firstCached = count - Math.min(count, lastImagesCache.getCapacity());
+            activePreviewImageIndex = Math.max(0, Math.min(position, count - 1) - firstCached);
+            onScreenDisplay.add("Image (" + fileManager.formatName(removed) + ") was removed.");
+            for (SnapshotListener listener : snapshotListeners) {
+                listener.frameRemoved(removed);
+            }
+            mainFrame.repaintImage();
+        }
+    }
+
+    @Override
+    public void moveShownImage(int offset)
+    {
+        if (cameraManager.isCapturing() || lastImagesCache.isEmpty()) {
+            return;
         }
+        stillImageWriter.flush();
+        int from = getShownPosition();
+        int to = Math.max(0, Math.min(from + offset, fileManager.getFrameCount() - 1));
+        if ((to == from) || (activePreviewImageIndex + to - from < 0)) {
+            return; // -- Cannot move beyond the cached frames.
+        }
+        insertPosition = -1;
+        fileManager.moveFrame(from, to);
+        reloadImageCache();
+        activePreviewImageIndex += to - from;
+        onScreenDisplay.replace("move", "Image moved to position " + to + ".");
+        mainFrame.repaintImage();
+    }
+
+    @Override
+    public void insertAfterShownImage()
+    {
+        if (cameraManager.isCapturing() || lastImagesCache.isEmpty()) {
+            return;
+        }
+        stillImageWriter.flush();
+        insertPosition = getShownPosition();
+        onScreenDisplay.add("Next capture goes after " +
+            fileManager.getFrameName(insertPosition) + ".");
+        liveViewMode();
+    }
+
+    /**
+     * @return Position in the batch of the image shown in playback.
+     */
+    private int getShownPosition() {
+        return fileManager.getFrameCount() - lastImagesCache.size() + activePreviewImageIndex;
+    }
+
+    /**
+     * Fills the cache with the last frames again, after the order of the
+     * frames changed.
+     */
+    private void reloadImageCache() {
+        imageCacheLoader.cancel();
+        lastImagesCache.clear();
+        displayImageCache.clear();
+        imageCacheLoader.warmUp(fileManager.listFrameFiles());
     }
 
     @Override
@@ -217,6 +421,9 @@ public class AppControllerImpl implements AppController, CaptureCallback
     public void createNewBatch() {
         if (fileManager.hasBatch())
         {
+            stillImageWriter.flush();
+            logger.info("Batch finished. " + stillImageWriter.getStatistics());
+            logger.info(lastImagesCache.getStatistics());
             File activeWorkingDirectory = fileManager.getActiveWorkingDirectory();
             PluginManager.getInstance().batchFinished(activeWorkingDirectory);
         }
@@ -224,7 +431,16 @@ public class AppControllerImpl implements AppController, CaptureCallback
         String batchName = fileManager.createNewWorkingDirectory();
         onScreenDisplay.add("New batch: " + batchName);
         activePreviewImageIndex = 0;
+        insertPosition = -1;
+        imageCacheLoader.cancel();
         lastImagesCache.clear();
+        displayImageCache.clear();
+    }
+
+    @Override
+    public void cancelBackgroundWork()
+    {
+        PluginManager.getInstance().cancelBackgroundWork();
     }
 
     @Override
@@ -257,50 +473,50 @@ public class AppControllerImpl implements AppController, CaptureCallback
     public void adjustCameraControl(String controlName, int increment)
     {
         int value = cameraManager.setControl(controlName, increment);
+        liveControls = null;
         onScreenDisplay.add(controlName, controlName + " set to: " + value);
     }
 
-    private void paintOsd(Graphics g) {
-        int fontSize = configurationManager.osdFontSize;
-        g.setFont(new Font("Helvetia", Font.PLAIN, fontSize));
-
-        List<String> messages = onScreenDisplay.messagesToDisplay();
-        if (messages != null) {
-            int y = 2 * fontSize;
-            for (String message : messages) {
-                drawText(g, fontSize, y, message, Color.magenta, 0);
-                y += fontSize + fontSize /2;
-            }
-        }
-        if (keyInfoOn) {
-            int y = 2 * fontSize;
-            Color blue = new Color(130, 130, 255);
-            for (int i = 0; i < KEY_INFO.length; i += 2) {
-                String message1 = KEY_INFO[i];
-                String message2 = KEY_INFO[i + 1];
-                drawText(g, fontSize, y, message1,blue, 0);
-                drawText(g, fontSize, y, message2, blue, mainFrame.getWidth()/2);
-                y += fontSize + fontSize / 2;
-            }
-            for (ConfigurationManager.ControlKey controlKey : configurationManager.keyList) {
-                String message = controlKey.dec + "/" + controlKey.inc + " - " + controlKey.name;
-                drawText(g, fontSize, y, message, blue, 0);
-                y += fontSize + fontSize / 2;
-            }
+    /**
+     * @return Control values of the running camera. Automatic features
+     * are disabled, so only adjustCameraControl() changes them.
+     */
+    private Map<String, Integer> getLiveControls() {
+        Map<String, Integer> controls = liveControls;
+        if (controls == null) {
+            controls = Collections.unmodifiableMap(cameraManager.saveControls());
+            liveControls = controls;
         }
+        return controls;
     }
 
-    private void drawText(
-        Graphics g,
-        int fontSize,
-        int y,
-        String message,
-        Color textColor,
-        int xOffset) {
-        g.setColor(Color.black);
-        g.drawString(message, fontSize + 2 + xOffset, y + 2);
-        g.setColor(textColor);
-        g.drawString(message, fontSize + xOffset    , y);
+    private void paintOsd(Graphics g) {
+        int count = onScreenDisplay.snapshot(osdMessages);
+        osdOverlay.paint(
+            g, osdMessages, count, keyInfoOn,
+            mainFrame.getImageDimension().width,
+            mainFrame.imageContainer.getGraphicsConfiguration());
+    }
+
+    /**
+     * Repaints the region of the on screen display only.
+     *
+     * @param messageCount Number of messages to be shown.
+     */
+    private void repaintOsd(int messageCount) {
+        mainFrame.repaintImage(osdOverlay.getDirtyRegion(
+            messageCount, keyInfoOn, mainFrame.getImageDimension().width));
+    }
+
+    private List<String[]> createKeyInfoRows() {
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < KEY_INFO.length; i += 2) {
+            rows.add(new String[] { KEY_INFO[i], KEY_INFO[i + 1] });
+        }
+        for (ConfigurationManager.ControlKey controlKey : configurationManager.keyList) {
+            rows.add(new String[] { controlKey.dec + "/" + controlKey.inc + " - " + controlKey.name });
+        }
+        return rows;
     }
 
     private void showImage(Graphics g, BufferedImage image) {
@@ -313,16 +529,58 @@ public class AppControllerImpl implements AppController, CaptureCallback
         }
     }
 
+    /**
+     * Shows a cached frame using its copy scaled to the screen.
+     */
+    private void showCachedImage(Graphics g, int index) {
+        BufferedImage image = getDisplayImage(index);
+        if (image != null) {
+            Dimension imageContainer = mainFrame.getImageDimension();
+            if (image.getWidth() == imageContainer.width) {
+                g.drawImage(image, 0, (imageContainer.height - image.getHeight()) / 2, mainFrame);
+            } else {
+                showImage(g, image);
+            }
+        }
+    }
+
+    /**
+     * @return Cached frame scaled to the container width.
+     */
+    private BufferedImage getDisplayImage(int index) {
+        File file = lastImagesCache.getFile(index);
+        return displayImageCache.get(
+            file, mainFrame.getImageDimension(),
+            mainFrame.imageContainer.getGraphicsConfiguration(),
+            () -> {
+                BufferedImage decoded = lastImagesCache.getImage(index);
+                // -- A capture might have shifted the cache meanwhile.
+                return file.equals(lastImagesCache.getFile(index)) ? decoded : null;
+            });
+    }
+
     private void showImages(Graphics2D g, BufferedImage liveImage) {
-        float alpha = configurationManager.onionAlpha;
-        int compositeRule = AlphaComposite.SRC_OVER;
-        AlphaComposite composite = AlphaComposite.getInstance(compositeRule, alpha);
         int s = lastImagesCache.size();
-        for (int i = s - onion; i < s; i++) {
-            if (i >= 0) {
-                showImage(g, lastImagesCache.get(i));
-                g.setComposite(composite);
-            }
+        int insertAfter = insertPosition;
+        if (insertAfter >= 0) {
+            // -- Show the frames preceding the insertion point.
+            s = Math.min(s, insertAfter + 1 - (fileManager.getFrameCount() - s));
+            // -- None of them cached, e.g. while the cache is refilled.
+            s = Math.max(0, s);
+        }
+        int first = Math.max(0, s - onion);
+        List<File> layers = new ArrayList<>(s - first);
+        for (int i = first; i < s; i++) {
+            layers.add(lastImagesCache.getFile(i));
+        }
+        Dimension imageContainer = mainFrame.getImageDimension();
+        BufferedImage background = onionSkin.getBackground(
+            layers, imageContainer, mainFrame.imageContainer.getGraphicsConfiguration(),
+            layer -> getDisplayImage(first + layer));
+        if (background != null) {
+            g.drawImage(background, 0, (imageContainer.height - background.getHeight()) / 2, mainFrame);
+            g.setComposite(AlphaComposite.getInstance(
+                AlphaComposite.SRC_OVER, configurationManager.onionAlpha));
         }
         showImage(g, liveImage);
     }
@@ -330,55 +588,111 @@ public class AppControllerImpl implements AppController, CaptureCallback
     private void doSnapshot() {
         onScreenDisplay.add("capture", "Capturing...");
         final boolean liveViewWasOn;
-        if (cameraManager.isCapturing()) {
+        final boolean fromLiveView;
+        long delayMs;
+        if (cameraManager.isCapturing() && configurationManager.stillFromLiveView) {
+            // -- Take the next frame of the running live view, no restart needed.
+            liveViewWasOn = true;
+            fromLiveView = true;
+            delayMs = 0;
+        } else if (cameraManager.isCapturing()) {
             liveViewWasOn = true;
+            fromLiveView = false;
             savedControls = cameraManager.saveControls();
             cameraManager.stop();
-            snapshotEffectTime = new Date(new Date().getTime() + configurationManager.delayMsBeforeSnapshot);
+            delayMs = configurationManager.delayMsBeforeSnapshot;
         } else {
-            snapshotEffectTime = new Date(new Date().getTime() + snapshotDelayMs);
+            delayMs = snapshotDelayMs;
             savedControls = null;
             liveViewWasOn = false;
+            fromLiveView = false;
         }
 
-        snapshotInProgress = true;
-        cameraManager.startStill(this, configurationManager.stillImageResolution);
-        if (savedControls != null) {
-            cameraManager.loadControls(savedControls);
+        Map<String, Integer> controls;
+        if (fromLiveView) {
+            controls = getLiveControls();
+        } else {
+            controls = savedControls != null ?
+                savedControls : Collections.<String, Integer>emptyMap();
         }
-        Thread th = new Thread(() ->
-        {
-            while (snapshotInProgress)
-            {
-                try
-                {
-                    Thread.sleep(1);
+        PendingSnapshot snapshot = new PendingSnapshot(delayMs, controls);
+        pendingSnapshot.set(snapshot);
+
+        // -- Set up before starting the camera, so a failing start also
+        //    finishes the snapshot and restores the mode.
+        long timeoutMs = delayMs + configurationManager.snapshotTimeoutMs;
+        ScheduledFuture<?> timeout = snapshotExecutor.schedule(() -> {
+            // -- A frame already taken by nextFrame() completes the snapshot.
+            if (pendingSnapshot.compareAndSet(snapshot, null)) {
+                snapshot.captured.completeExceptionally(new TimeoutException(
+                    "No frame arrived in " + timeoutMs + " ms."));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        snapshot.captured.whenCompleteAsync((stillImage, error) -> {
+            timeout.cancel(false);
+            finishSnapshot(snapshot, stillImage, error, liveViewWasOn, fromLiveView);
+        }, snapshotExecutor);
+
+        if (!fromLiveView) {
+            try {
+                cameraManager.startStill(this, configurationManager.stillImageResolution);
+                if (savedControls != null) {
+                    cameraManager.loadControls(savedControls);
                 }
-                catch (InterruptedException e)
-                {
-                    break;
+            } catch (RuntimeException e) {
+                logger.error("Cannot start the camera for a still image", e);
+                if (pendingSnapshot.compareAndSet(snapshot, null)) {
+                    snapshot.captured.completeExceptionally(e);
                 }
             }
+        }
+    }
+
+    /**
+     * Returns the camera to its state before the snapshot. Runs on the
+     * snapshot executor after the frame arrived or the snapshot timed out.
+     */
+    private void finishSnapshot(
+        PendingSnapshot snapshot, StillImage stillImage, Throwable error,
+        boolean liveViewWasOn, boolean fromLiveView)
+    {
+        pendingSnapshot.compareAndSet(snapshot, null);
+        long capturedMs = snapshot.elapsedMs();
+
+        if (fromLiveView) {
+            setMode(Mode.LIVE_VIEW);
+        } else if (liveViewWasOn) {
+            cameraManager.stop();
+            startCapture();
+            cameraManager.loadControls(savedControls);
+            setMode(Mode.LIVE_VIEW);
+        } else {
             cameraManager.stop();
+            setMode(Mode.PLAYBACK);
+            mainFrame.repaintImage();
+        }
 
-            if (liveViewWasOn)
-            {
-                startCapture();
-                cameraManager.loadControls(savedControls);
-                setMode(Mode.LIVE_VIEW);
-            }
-            else
-            {
-                setMode(Mode.PLAYBACK);
-                mainFrame.repaintImage();
-            }
-            if (configurationManager.enableBeep)
-            {
-                Toolkit.getDefaultToolkit().beep();
+        if (error != null) {
+            logger.error("Snapshot failed.", error);
+            for (SnapshotListener listener : snapshotListeners) {
+                listener.snapshotFailed(null, error);
             }
-        });
-        th.start();
-        //        this.requestFocusInWindow();
+            return;
+        }
+
+        logger.info("Snapshot " + stillImage.getFile() + " captured in " + capturedMs +
+            " ms, camera ready in " + snapshot.elapsedMs() + " ms.");
+        if (stillImage.isInserted()) {
+            insertPosition = -1;
+            stillImageWriter.flush();
+            reloadImageCache();
+        }
+        for (SnapshotListener listener : snapshotListeners) {
+            listener.snapshotCaptured(stillImage.getFile(), capturedMs);
+        }
+        if (configurationManager.enableBeep) {
+            Toolkit.getDefaultToolkit().beep();
+        }
     }
 
     private synchronized boolean setMode(Mode newMode)
@@ -409,48 +723,78 @@ public class AppControllerImpl implements AppController, CaptureCallback
     }
 
     public void startCapture() {
-        cameraManager.start(this, configurationManager.liveViewResolution);
+        // -- Stills taken from live view need the quality of still images.
+        int quality = configurationManager.stillFromLiveView ?
+            CameraManager.STILL_QUALITY : CameraManager.LIVE_VIEW_QUALITY;
+        cameraManager.start(this, configurationManager.liveViewResolution, quality);
         if (savedControls != null) {
             cameraManager.loadControls(savedControls);
         }
+        liveControls = null;
     }
 
     @Override
     public void shutdown()
     {
         welcomeTimer.cancel();
+        snapshotExecutor.shutdownNow();
+        imageCacheLoader.shutdown();
         onScreenDisplay.dispose();
         if (cameraManager.isCapturing()) {
             cameraManager.stop();
         }
         cameraManager.dispose();
+        stillImageWriter.shutdown(10000);
+        logger.info(liveFrameSlot.getStatistics());
+        logger.info(lastImagesCache.getStatistics());
+        logger.info(displayImageCache.getStatistics());
     }
 
-    public void nextFrame(VideoFrame frame) {
-        BufferedImage bufferedImage = frame.getBufferedImage();
-        if (snapshotInProgress) {
-            if (new Date().after(snapshotEffectTime)) {
+    public void nextFrame(CapturedFrame frame) {
+        PendingSnapshot snapshot = pendingSnapshot.get();
+        if (snapshot != null) {
+            if (snapshot.isDue() && pendingSnapshot.compareAndSet(snapshot, null)) {
                 try {
                     createNewBatchIfNone();
                     File outputfile = fileManager.getNextFile();
-                    ImageIO.write(bufferedImage, "jpg", outputfile);
-                    lastImagesCache.add(bufferedImage);
-                    onScreenDisplay.replace("capture", "Frame saved to: " + fileManager.formatName(outputfile) );
-                } catch (IOException e) {
-                    logger.error(e);
-                } finally {
-                    snapshotInProgress = false;
+                    StillImage stillImage;
+                    if (configurationManager.reencodeStillImage) {
+                        stillImage = new StillImage(outputfile, frame.getBufferedImage());
+                    } else {
+                        stillImage = new StillImage(outputfile,
+                            Arrays.copyOf(frame.getBytes(), frame.getFrameLength()));
+                    }
+                    stillImage.setCaptureInfo(
+                        System.currentTimeMillis(), frame.getWidth(), frame.getHeight(),
+                        snapshot.controls);
+                    int insertAfter = insertPosition;
+                    if (insertAfter >= 0) {
+                        String anchor = fileManager.getFrameName(insertAfter);
+                        if (anchor != null) {
+                            stillImage.setInsertAfter(anchor);
+                        } else {
+                            // -- The frame is gone, append instead.
+                            insertPosition = -1;
+                        }
+                    }
+                    stillImageWriter.submit(stillImage);
+                    if (!stillImage.isInserted()) {
+                        lastImagesCache.add(stillImage);
+                    }
+                    snapshot.captured.complete(stillImage);
+                } catch (RuntimeException e) {
+                    snapshot.captured.completeExceptionally(e);
                 }
             }
         } else {
-            //            System.out.print(".");
-            image = bufferedImage;
-            mainFrame.repaintImage();
+            if (liveFrameSlot.publish(frame)) {
+                mainFrame.repaintImage();
+            }
         }
         frame.recycle();
     }
 
-    public void exceptionReceived(V4L4JException e) {
+    public void exceptionReceived(FrameSourceException e) {
        logger.error(e);
     }
 
@@ -491,4 +835,40 @@ public class AppControllerImpl implements AppController, CaptureCallback
     {
         return onScreenDisplay;
     }
+
+    @Override
+    public void addSnapshotListener(SnapshotListener listener)
+    {
+        snapshotListeners.add(listener);
+    }
+
+    @Override
+    public void removeSnapshotListener(SnapshotListener listener)
+    {
+        snapshotListeners.remove(listener);
+    }
+
+    /**
+     * A snapshot waiting for its frame to arrive.
+     */
+    private static class PendingSnapshot {
+        final long startNs = System.nanoTime();
+        final long effectNs;
+        final CompletableFuture<StillImage> captured = new CompletableFuture<>();
+        /** Camera controls in effect for the snapshot. */
+        final Map<String, Integer> controls;
+
+        PendingSnapshot(long delayMs, Map<String, Integer> controls) {
+            this.controls = controls;
+            effectNs = startNs + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        }
+
+        boolean isDue() {
+            return System.nanoTime() - effectNs >= 0;
+        }
+
+        long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        }
+    }
 }
@@ -0,0 +1,398 @@
+package com.prampec.rivetcam;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checks the batches of a base directory, e.g. after a card failure. Every
+ * frame is read and decoded, frames of all batches in parallel. Reports
+ * corrupt frames, frames missing from the disk or from the manifest, gaps
+ * in the numbering, and staging files left behind by a crash.
+ * <p>
+ * When repairing, corrupt frames and staging files are moved to the
+ * quarantine directory of their batch, and manifests are rebuilt to list
+ * exactly the sound frames on the disk.
+ */
+public class BatchVerifier
+{
+    private static final Logger logger =
+        LogManager.getLogger(BatchVerifier.class);
+
+    static final String QUARANTINE_DIRECTORY = ".quarantine";
+    /** Decoding with subsampling still reads all the data. */
+    private static final int DECODE_SUBSAMPLING = 8;
+
+    private final FileManager fileManager;
+    private final File baseDirectory;
+    private final boolean repair;
+    private final PrintStream out;
+    private final ExecutorService pool;
+    private final Queue<ImageReader> readers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private int frameCount = 0;
+    private int problemCount = 0;
+
+    /**
+     * @param fileManager Naming scheme of the batches and frames.
+     * @param repair Quarantine bad files and rebuild manifests.
+     * @param threads Number of frames checked at the same time.
+     */
+    public BatchVerifier(
+        FileManager fileManager, File baseDirectory, boolean repair,
+        int threads, PrintStream out)
+    {
+        this.fileManager = fileManager;
+        this.baseDirectory = baseDirectory;
+        this.repair = repair;
+        this.out = out;
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), r ->
+        {
+            Thread thread = new Thread(r, "verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Checks all batches, and repairs them if requested.
+     *
+     * @return Number of problems found.
+     */
+    public int verify() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        List<Batch> batches = new ArrayList<>();
+        for (File directory : listBatches())
+        {
+            Batch batch = new Batch(directory);
+            batches.add(batch);
+            for (File frame : batch.frames)
+            {
+                batch.results.put(frame, pool.submit(() -> checkFrame(frame)));
+            }
+            frameCount += batch.frames.size();
+        }
+        // -- Frames are checked in the background while batches are
+        //    reported in order.
+        for (Batch batch : batches)
+        {
+            report(batch);
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        out.println(String.format(
+            "Checked %d frames in %d batches in %.1f s: %.0f frames/s, %.1f MB/s. %d problems%s.",
+            frameCount, batches.size(), elapsed / 1000.0,
+            frameCount * 1000.0 / elapsed,
+            bytesRead.get() * 1000.0 / elapsed / 1024 / 1024,
+            problemCount, repair ? " repaired" : " found"));
+        return problemCount;
+    }
+
+    public void shutdown()
+    {
+        pool.shutdownNow();
+        for (ImageReader reader : readers)
+        {
+            reader.dispose();
+        }
+    }
+
+    private List<File> listBatches() throws IOException
+    {
+        TreeMap<Integer, File> batches = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+            baseDirectory.toPath(), fileManager.directoryPrefix + "*"))
+        {
+            for (Path path : stream)
+            {
+                int index = FileManager.parseIndex(
+                    path.getFileName().toString(), fileManager.directoryPrefix,
+                    fileManager.directoryIndexDigits, "");
+                if ((index >= 0) && Files.isDirectory(path))
+                {
+                    batches.put(index, path.toFile());
+                }
+            }
+        }
+        return new ArrayList<>(batches.values());
+    }
+
+    /**
+     * @return Description of the problem, or null if the frame is sound.
+     */
+    private String checkFrame(File frame)
+    {
+        byte[] data;
+        try
+        {
+            data = Files.readAllBytes(frame.toPath());
+        }
+        catch (IOException e)
+        {
+            return "unreadable: " + e.getMessage();
+        }
+        bytesRead.addAndGet(data.length);
+        if ((data.length < 4) || ((data[0] & 0xFF) != 0xFF) ||
+            ((data[1] & 0xFF) != 0xD8))
+        {
+            return "no JPEG start marker";
+        }
+        // -- Some drivers pad frames with zeros after the end marker.
+        int end = data.length;
+        while ((end > 2) && (data[end - 1] == 0))
+        {
+            end -= 1;
+        }
+        if (((data[end - 2] & 0xFF) != 0xFF) || ((data[end - 1] & 0xFF) != 0xD9))
+        {
+            return "no JPEG end marker, truncated";
+        }
+        return decode(data);
+    }
+
+    /**
+     * @return Description of the decoding problem, or null if the data
+     * decodes without warnings.
+     */
+    private String decode(byte[] data)
+    {
+        ImageReader reader = readers.poll();
+        if (reader == null)
+        {
+            reader = ImageIO.getImageReadersByFormatName("jpg").next();
+        }
+        // -- Damaged entropy coded data is only reported as a warning.
+        String[] warning = new String[1];
+        reader.addIIOReadWarningListener((source, message) -> warning[0] = message);
+        try (ImageInputStream in =
+            ImageIO.createImageInputStream(new ByteArrayInputStream(data)))
+        {
+            reader.setInput(in, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(DECODE_SUBSAMPLING, DECODE_SUBSAMPLING, 0, 0);
+            reader.read(0, param);
+            return warning[0] == null ? null : "damaged: " + warning[0];
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return "cannot decode: " + e.getMessage();
+        }
+        finally
+        {
+            reader.reset();
+            readers.add(reader);
+        }
+    }
+
+    private void report(Batch batch) throws IOException
+    {
+        String name = batch.directory.getName();
+        List<File> sound = new ArrayList<>();
+        List<File> corrupt = new ArrayList<>();
+        for (Map.Entry<File, Future<String>> result : batch.results.entrySet())
+        {
+            String problem;
+            try
+            {
+                problem = result.getValue().get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Verification interrupted.");
+            }
+            catch (ExecutionException e)
+            {
+                problem = "cannot check: " + e.getCause();
+            }
+            if (problem == null)
+            {
+                sound.add(result.getKey());
+            }
+            else
+            {
+                problem(name, result.getKey().getName() + " " + problem);
+                corrupt.add(result.getKey());
+            }
+        }
+
+        Set<String> onDisk = new HashSet<>();
+        // -- Numbering may continue from the previous batch.
+        int previous = -2;
+        for (File frame : batch.frames)
+        {
+            onDisk.add(frame.getName());
+            int index = fileManager.parseFileIndex(frame.getName());
+            // -- Frames removed on purpose are not in the manifest either.
+            if ((previous >= -1) && (index > previous + 1) && !batch.manifest.exists())
+            {
+                problem(name, index == previous + 2 ?
+                    "frame " + (previous + 1) + " is missing" :
+                    "frames " + (previous + 1) + ".." + (index - 1) + " are missing");
+            }
+            previous = index;
+        }
+        Set<String> listed = new HashSet<>();
+        for (FrameManifest.Entry entry : batch.manifest.getEntries())
+        {
+            listed.add(entry.fileName);
+            File frame = new File(batch.directory, entry.fileName);
+            if (!onDisk.contains(entry.fileName))
+            {
+                problem(name, entry.fileName + " is in the manifest, but not on the disk");
+            }
+            else if (entry.byteSize != frame.length())
+            {
+                problem(name, entry.fileName + " has " + frame.length() +
+                    " bytes instead of " + entry.byteSize);
+            }
+        }
+        if (!batch.frames.isEmpty() && !batch.manifest.exists())
+        {
+            problem(name, "has no manifest");
+        }
+        else
+        {
+            for (File frame : batch.frames)
+            {
+                if (!listed.contains(frame.getName()))
+                {
+                    problem(name, frame.getName() + " is not in the manifest");
+                }
+            }
+        }
+        for (File leftover : batch.leftovers)
+        {
+            problem(name, leftover.getName() + " is an unfinished write");
+        }
+
+        if (repair)
+        {
+            repair(batch, sound, corrupt);
+        }
+    }
+
+    /**
+     * Quarantines bad files, then makes the manifest list the sound frames,
+     * keeping their existing order and capture information.
+     */
+    private void repair(Batch batch, List<File> sound, List<File> corrupt)
+        throws IOException
+    {
+        List<File> quarantined = new ArrayList<>(corrupt);
+        quarantined.addAll(batch.leftovers);
+        if (!quarantined.isEmpty())
+        {
+            File quarantine = new File(batch.directory, QUARANTINE_DIRECTORY);
+            Files.createDirectories(quarantine.toPath());
+            for (File file : quarantined)
+            {
+                Files.move(file.toPath(), new File(quarantine, file.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        FrameManifest manifest = batch.manifest;
+        Map<String, File> soundByName = new HashMap<>();
+        for (File frame : sound)
+        {
+            soundByName.put(frame.getName(), frame);
+        }
+        // -- Name of the last frame kept, null for the first position.
+        String previous = null;
+        int updated = 0;
+        for (FrameManifest.Entry entry : manifest.getEntries())
+        {
+            File frame = soundByName.remove(entry.fileName);
+            if (frame == null)
+            {
+                manifest.remove(entry.index, entry.fileName);
+                continue;
+            }
+            if (frame.length() != entry.byteSize)
+            {
+                // -- Listed again at the same position, with its actual
+                //    size.
+                manifest.insertAfter(new FrameManifest.Entry(
+                    entry.index, entry.fileName, frame.length(),
+                    entry.captureTime, entry.width, entry.height,
+                    entry.controls), previous);
+                updated += 1;
+            }
+            previous = entry.fileName;
+        }
+        List<FrameManifest.Entry> missing = new ArrayList<>();
+        for (File frame : sound)
+        {
+            if (soundByName.containsKey(frame.getName()))
+            {
+                missing.add(FileManager.createEntry(
+                    fileManager.parseFileIndex(frame.getName()), frame));
+            }
+        }
+        manifest.addAll(missing);
+        logger.info("Repaired " + batch.directory + ": " + quarantined.size() +
+            " files quarantined, " + updated + " manifest entries updated, " +
+            missing.size() + " frames added to the manifest.");
+    }
+
+    private void problem(String batch, String message)
+    {
+        problemCount += 1;
+        out.println(batch + ": " + message);
+    }
+
+    private class Batch
+    {
+        final File directory;
+        final FrameManifest manifest;
+        /** Frame files on the disk, by their names. */
+        final List<File> frames;
+        /** Staging files of the image writer left by a crash. */
+        final List<File> leftovers = new ArrayList<>();
+        final Map<File, Future<String>> results = new LinkedHashMap<>();
+
+        Batch(File directory)
+        {
+            this.directory = directory;
+            this.manifest = FrameManifest.load(directory);
+            this.frames = fileManager.listFrameFiles(directory);
+            File[] staged = directory.listFiles((dir, name) ->
+                name.startsWith(".") && name.endsWith(StillImageWriter.TEMP_SUFFIX));
+            if (staged != null)
+            {
+                Collections.addAll(leftovers, staged);
+            }
+        }
+    }
+}
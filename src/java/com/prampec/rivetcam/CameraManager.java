@@ -24,13 +24,12 @@
 
 package com.prampec.rivetcam;
 
-import au.edu.jcu.v4l4j.*;
-import au.edu.jcu.v4l4j.exceptions.ControlException;
-import au.edu.jcu.v4l4j.exceptions.StateException;
-import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+import com.prampec.rivetcam.source.FrameListener;
+import com.prampec.rivetcam.source.FrameSource;
+import com.prampec.rivetcam.source.FrameSourceControl;
+import com.prampec.rivetcam.source.FrameSourceException;
 
 import java.awt.*;
-import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
@@ -47,105 +46,58 @@ public class CameraManager {
     private static final Logger logger =
         LogManager.getLogger(CameraManager.class);
 
-    private final DeviceInfo di;
-    private VideoDevice videoDevice;
+    public static final int LIVE_VIEW_QUALITY = 80;
+    public static final int STILL_QUALITY = 98;
+
+    private final FrameSource frameSource;
     private List<String> preserve;
     private List<ConfigurationManager.ManualControl> manualList;
-    private FrameGrabber grabber = null;
 
     public CameraManager(
-            String deviceFile,
+            FrameSource frameSource,
             List<String> preserve,
             List<ConfigurationManager.ManualControl> manualList) {
-        logger.info("Opening video device: " + deviceFile);
-        videoDevice = getVideoDevice(new File(deviceFile));
+        this.frameSource = frameSource;
         this.preserve = preserve;
         this.manualList = manualList;
-        try {
-            di = videoDevice.getDeviceInfo();
-        } catch (V4L4JException e) {
-            throw new IllegalStateException("Cannot get video device information.", e);
-        }
-        logger.info("Video device name: " + di.getName());
+        logger.info("Frame source: " + frameSource.getName());
     }
 
-    private static VideoDevice getVideoDevice(File file) {
-        try {
-            return new VideoDevice(file.getAbsolutePath());
-        } catch (V4L4JException e) {
-            logger.error("Cannot instantiate V4L4J device from " + file, e);
-            throw new IllegalStateException("Cannot instantiate V4L4J device from " + file, e);
-        }
+    public void start(FrameListener frameListener, Dimension d) {
+        start(frameListener, d, LIVE_VIEW_QUALITY);
     }
 
-    public void start(CaptureCallback captureCallback, Dimension d) {
-        try {
-            // TODO: also define image format
-            grabber = videoDevice.getJPEGFrameGrabber(d.width, d.height, 0, 0, 80, null);
-        } catch (V4L4JException e) {
-            throw new IllegalStateException(e);
-        }
-
-        grabber.setCaptureCallback(captureCallback);
-
-        try {
-            grabber.startCapture();
-        } catch (V4L4JException e) {
-            throw new IllegalStateException(e);
-        }
+    public void startStill(FrameListener frameListener, Dimension d) {
+        start(frameListener, d, STILL_QUALITY);
     }
 
-    public void startStill(CaptureCallback captureCallback, Dimension d) {
+    public void start(FrameListener frameListener, Dimension d, int jpegQuality) {
         try {
-            // TODO: also define image format
-            grabber = videoDevice.getJPEGFrameGrabber(d.width, d.height, 0, 0, 98, null);
-        } catch (V4L4JException e) {
-            throw new IllegalStateException(e);
-        }
-
-        grabber.setCaptureCallback(captureCallback);
-
-        try {
-            grabber.startCapture();
-        } catch (V4L4JException e) {
+            frameSource.startCapture(frameListener, d, jpegQuality);
+        } catch (FrameSourceException e) {
             throw new IllegalStateException(e);
         }
     }
 
     public synchronized void stop() {
-        try {
-            if (grabber != null) {
-                grabber.stopCapture();
-            }
-        } catch (StateException e) {
-            logger.error(e);
-        }
-
-        grabber = null;
-        videoDevice.releaseFrameGrabber();
+        frameSource.stopCapture();
     }
 
     public boolean isCapturing() {
-        return grabber != null;
+        return frameSource.isCapturing();
     }
 
     public void dispose() {
-        try {
-            videoDevice.releaseControlList();
-            videoDevice.release();
-        } catch (au.edu.jcu.v4l4j.exceptions.StateException e) {
-            // ignore this
-        }
+        frameSource.release();
     }
 
     /**
      * Disables all features of the camera, that is changed over time by the camera itself.
      */
     public void disableAuto() {
-        ControlList controlList = videoDevice.getControlList();
         for (ConfigurationManager.ManualControl manualControl : manualList) {
             try {
-                Control control = controlList.getControl(manualControl.name);
+                FrameSourceControl control = frameSource.getControl(manualControl.name);
                 if (control != null) {
                     logger.info("Setting control '" + manualControl.name + "' to value: '" + manualControl.value + "'");
                     control.setValue(Integer.parseInt(manualControl.value));
@@ -154,7 +106,7 @@ public class CameraManager {
                     logger.error("'" + manualControl.name + "' is defined for manual control, but camera '"
                             + getCameraName() + "' does not provide this control. Try running diagnostics!");
                 }
-            } catch (ControlException e) {
+            } catch (FrameSourceException e) {
                 logger.error(e);
             }
         }
@@ -162,13 +114,12 @@ public class CameraManager {
 
     public Map<String, Integer> saveControls() {
         Map<String, Integer> controlsToSave = new HashMap<>();
-        ControlList controlList = videoDevice.getControlList();
 
         for (String controlName : preserve) {
             try {
-                addControlValueToMap(controlList, controlsToSave, controlName);
+                addControlValueToMap(controlsToSave, controlName);
 
-            } catch (ControlException e) {
+            } catch (FrameSourceException e) {
                 logger.error(e);
             }
         }
@@ -177,10 +128,9 @@ public class CameraManager {
     }
 
     public void loadControls(Map<String, Integer> save) {
-        ControlList controlList = videoDevice.getControlList();
         try {
             for (String controlName : save.keySet()) {
-                Control control = controlList.getControl(controlName);
+                FrameSourceControl control = frameSource.getControl(controlName);
                 if (control == null) {
                     logger.error(
                             "'" + controlName + "' is defined as a persistable control, but camera '"
@@ -199,14 +149,14 @@ public class CameraManager {
                 }
                 control.setValue(value);
             }
-        } catch (ControlException e) {
+        } catch (FrameSourceException e) {
             logger.error(e);
         }
     }
 
     private void addControlValueToMap(
-            ControlList controlList, Map<String, Integer> controlsToSave, String controlName) throws ControlException {
-        Control control = controlList.getControl(controlName);
+            Map<String, Integer> controlsToSave, String controlName) throws FrameSourceException {
+        FrameSourceControl control = frameSource.getControl(controlName);
         if (control != null) {
             // TODO: handle non-integer values
             controlsToSave.put(controlName, control.getValue());
@@ -219,9 +169,8 @@ public class CameraManager {
     }
 
     public int setControl(String controlName, int increment) {
-        ControlList controlList = videoDevice.getControlList();
         try {
-            Control control = controlList.getControl(controlName);
+            FrameSourceControl control = frameSource.getControl(controlName);
             if (control == null) {
                 logger.error(
                         "Trying to set control value for '" + controlName + "', but camera '"
@@ -238,13 +187,13 @@ public class CameraManager {
             }
             control.setValue(value);
             return value / control.getStepValue();
-        } catch (ControlException e) {
+        } catch (FrameSourceException e) {
             logger.error(e);
             return -1;
         }
     }
 
     public String getCameraName() {
-        return di.getName();
+        return frameSource.getName();
     }
 }
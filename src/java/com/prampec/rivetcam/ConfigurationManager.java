@@ -25,6 +25,7 @@
 package com.prampec.rivetcam;
 
 import au.edu.jcu.v4l4j.DeviceInfo;
+import com.prampec.rivetcam.source.FrameSourceFactory;
 import com.prampec.util.KeyEventWrapper;
 import com.prampec.util.PropertiesHelper;
 
@@ -44,9 +45,13 @@ import org.apache.logging.log4j.Logger;
 public class ConfigurationManager {
     private static final Logger logger =
         LogManager.getLogger(ConfigurationManager.class);
+    /** Deepest onion skin, each layer takes the memory of a screen sized image. */
+    static final int MAX_ONION_DEPTH = 10;
 
     private final Properties properties;
     String videoDevice;
+    String frameSourceType;
+    Properties frameSourceProperties;
     List<ManualControl> manualList;
     List<String> preserveList;
     List<ControlKey> keyList;
@@ -55,8 +60,28 @@ public class ConfigurationManager {
     Dimension liveViewResolution;
     Dimension stillImageResolution;
     long delayMsBeforeSnapshot;
+    long snapshotTimeoutMs;
+    boolean reencodeStillImage;
+    boolean stillFromLiveView;
+    int writerQueueSize;
+    StillImageWriter.OverflowPolicy writerOverflowPolicy;
+    int writerSpillLimit;
+    StillImageWriter.Durability writerDurability;
+    long groupCommitMs;
     int imageCacheSize;
+    long imageCacheMaxBytes;
+    boolean imageCacheOffHeap;
+    int imageCacheOffHeapBytes;
+    String imageCacheSpillFile;
+    int imageCacheDecodedImages;
+    int imageCacheLoaderThreads;
     float onionAlpha;
+    int onionDepth;
+    float onionDecay;
+    OnionSkin.Mode onionMode;
+    int displayCacheSize;
+    boolean activeRendering;
+    int activeRenderFps;
     String directoryPrefix;
     int directoryIndexDigits;
     String filePrefix;
@@ -64,6 +89,7 @@ public class ConfigurationManager {
     int fileIndexDigits;
     String baseDirectoryPath;
     boolean restartFileIndexWithNewDirectory;
+    boolean resumeLastBatch;
     boolean enableBeep;
     Dimension fixedWindowSize;
     boolean returnToLiveViewAfterPlayback;
@@ -90,14 +116,45 @@ public class ConfigurationManager {
                 videoDevice = "/dev/video0";
             }
         }
+        frameSourceType = properties.getProperty(
+                "frameSource", FrameSourceFactory.TYPE_V4L4J);
+        frameSourceProperties = PropertiesHelper.getSubProperties(
+                properties, "frameSource." + frameSourceType + ".");
         fixedWindowSize = parseDimension(properties.getProperty("fixedWindowSize"));
         playbackFps = Integer.parseInt(properties.getProperty("playbackFps", "20"));
         osdFontSize = Integer.parseInt(properties.getProperty("osdFontSize", "50"));
         liveViewResolution = parseDimension(properties.getProperty("liveView.resolution", "960x544"));
         stillImageResolution = parseDimension(properties.getProperty("stillImage.resolution", "1280x720"));
         delayMsBeforeSnapshot = Integer.parseInt(properties.getProperty("stillImage.delayMs", "1000"));
+        snapshotTimeoutMs = Integer.parseInt(properties.getProperty("stillImage.timeoutMs", "5000"));
+        String fromLiveView = properties.getProperty("stillImage.fromLiveView", "auto");
+        stillFromLiveView = "auto".equalsIgnoreCase(fromLiveView) ?
+                liveViewResolution.equals(stillImageResolution) : Boolean.parseBoolean(fromLiveView);
+        reencodeStillImage = "reencode".equalsIgnoreCase(
+                properties.getProperty("stillImage.saveMode", "original"));
+        writerQueueSize = Integer.parseInt(properties.getProperty("stillImage.writerQueueSize", "8"));
+        writerOverflowPolicy = StillImageWriter.OverflowPolicy.valueOf(
+                properties.getProperty("stillImage.writerOverflow", "block").toUpperCase());
+        writerSpillLimit = Integer.parseInt(properties.getProperty("stillImage.writerSpillLimit", "256"));
+        writerDurability = StillImageWriter.Durability.valueOf(
+                properties.getProperty("stillImage.durability", "group").toUpperCase());
+        groupCommitMs = Long.parseLong(properties.getProperty("stillImage.groupCommitMs", "50"));
         imageCacheSize = Integer.parseInt(properties.getProperty("imageCacheSize", "10"));
+        imageCacheMaxBytes = Long.parseLong(properties.getProperty("imageCacheMaxBytes", "67108864"));
+        imageCacheOffHeap = "offHeap".equalsIgnoreCase(properties.getProperty("imageCacheTier", "heap"));
+        imageCacheOffHeapBytes = Integer.parseInt(properties.getProperty("imageCacheOffHeapBytes", "134217728"));
+        imageCacheSpillFile = properties.getProperty("imageCacheSpillFile");
+        imageCacheDecodedImages = Integer.parseInt(properties.getProperty("imageCacheDecodedImages", "4"));
+        imageCacheLoaderThreads = Integer.parseInt(properties.getProperty("imageCacheLoaderThreads", "2"));
         onionAlpha = Float.parseFloat(properties.getProperty("onionAlpha", "0.6"));
+        onionDepth = Math.max(0, Math.min(MAX_ONION_DEPTH,
+                Integer.parseInt(properties.getProperty("onionDepth", "2"))));
+        onionDecay = Float.parseFloat(properties.getProperty("onionDecay", "0.67"));
+        onionMode = OnionSkin.Mode.valueOf(
+                properties.getProperty("onionMode", "normal").toUpperCase());
+        displayCacheSize = Integer.parseInt(properties.getProperty("displayCacheSize", "8"));
+        activeRendering = "active".equalsIgnoreCase(properties.getProperty("renderMode", "swing"));
+        activeRenderFps = Integer.parseInt(properties.getProperty("activeRenderFps", "0"));
         readManualList();
         readPreserveList();
         readKeysList();
@@ -110,6 +167,8 @@ public class ConfigurationManager {
         baseDirectoryPath = properties.getProperty("baseDirectoryPath", ".");
         restartFileIndexWithNewDirectory = Boolean.parseBoolean(
                 properties.getProperty("restartFileIndexWithNewDirectory", "False"));
+        resumeLastBatch = Boolean.parseBoolean(
+                properties.getProperty("resumeLastBatch", "False"));
         enableBeep = Boolean.parseBoolean(
                 properties.getProperty("enableBeep", "True"));
         returnToLiveViewAfterPlayback = Boolean.parseBoolean(
@@ -137,13 +196,7 @@ public class ConfigurationManager {
     }
 
     private static Dimension parseDimension(String value) {
-        if (value == null)
-        {
-            return null;
-        }
-        String[] split = value.split("x");
-        Dimension d = new Dimension(Integer.parseInt(split[0]), Integer.parseInt(split[1]));
-        return d;
+        return PropertiesHelper.parseDimension(value);
     }
 
     protected void readManualList() {
@@ -193,6 +246,16 @@ public class ConfigurationManager {
         return videoDevice;
     }
 
+    public String getFrameSourceType()
+    {
+        return frameSourceType;
+    }
+
+    public Properties getFrameSourceProperties()
+    {
+        return frameSourceProperties;
+    }
+
     public List<ManualControl> getManualList()
     {
         return manualList;
@@ -233,16 +296,116 @@ public class ConfigurationManager {
         return delayMsBeforeSnapshot;
     }
 
+    public boolean isStillFromLiveView()
+    {
+        return stillFromLiveView;
+    }
+
+    public boolean isReencodeStillImage()
+    {
+        return reencodeStillImage;
+    }
+
+    public long getSnapshotTimeoutMs()
+    {
+        return snapshotTimeoutMs;
+    }
+
+    public int getWriterQueueSize()
+    {
+        return writerQueueSize;
+    }
+
+    public StillImageWriter.OverflowPolicy getWriterOverflowPolicy()
+    {
+        return writerOverflowPolicy;
+    }
+
+    public int getWriterSpillLimit()
+    {
+        return writerSpillLimit;
+    }
+
+    public StillImageWriter.Durability getWriterDurability()
+    {
+        return writerDurability;
+    }
+
+    public long getGroupCommitMs()
+    {
+        return groupCommitMs;
+    }
+
     public int getImageCacheSize()
     {
         return imageCacheSize;
     }
 
+    public long getImageCacheMaxBytes()
+    {
+        return imageCacheMaxBytes;
+    }
+
+    public boolean isImageCacheOffHeap()
+    {
+        return imageCacheOffHeap;
+    }
+
+    public int getImageCacheOffHeapBytes()
+    {
+        return imageCacheOffHeapBytes;
+    }
+
+    public String getImageCacheSpillFile()
+    {
+        return imageCacheSpillFile;
+    }
+
+    public int getImageCacheDecodedImages()
+    {
+        return imageCacheDecodedImages;
+    }
+
+    public int getImageCacheLoaderThreads()
+    {
+        return imageCacheLoaderThreads;
+    }
+
     public float getOnionAlpha()
     {
         return onionAlpha;
     }
 
+    public int getOnionDepth()
+    {
+        return onionDepth;
+    }
+
+    public float getOnionDecay()
+    {
+        return onionDecay;
+    }
+
+    public OnionSkin.Mode getOnionMode()
+    {
+        return onionMode;
+    }
+
+    public int getDisplayCacheSize()
+    {
+        return displayCacheSize;
+    }
+
+    public boolean isActiveRendering()
+    {
+        return activeRendering;
+    }
+
+    public int getActiveRenderFps()
+    {
+        return activeRenderFps;
+    }
+
     public String getDirectoryPrefix()
     {
         return directoryPrefix;
@@ -278,6 +441,11 @@ public class ConfigurationManager {
         return restartFileIndexWithNewDirectory;
     }
 
+    public boolean isResumeLastBatch()
+    {
+        return resumeLastBatch;
+    }
+
     public boolean isEnableBeep()
     {
         return enableBeep;
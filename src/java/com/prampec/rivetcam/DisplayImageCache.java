@@ -0,0 +1,146 @@
+package com.prampec.rivetcam;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Copies of cached frames scaled to the image container, in the pixel
+ * format of the screen, so painting them is a plain copy that Java2D can
+ * accelerate. A copy is made when a frame is first shown at a container
+ * size, and kept until the container is resized or the frame is
+ * invalidated.
+ * <p>
+ * Frames are identified by their file, so a copy can be painted without
+ * decoding the frame again.
+ */
+public class DisplayImageCache
+{
+    private final int capacity;
+    /** Scaled copies by frame, least recently shown first. */
+    private final LinkedHashMap<File, Entry> entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Bumped by invalidate() and clear(), see get(). */
+    private long modificationCount = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    private static class Entry
+    {
+        final Dimension container;
+        final BufferedImage image;
+
+        Entry(Dimension container, BufferedImage image)
+        {
+            this.container = container;
+            this.image = image;
+        }
+    }
+
+    /**
+     * @param capacity Number of scaled copies kept, each takes the memory
+     * of a screen sized image.
+     */
+    public DisplayImageCache(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Returns the frame scaled to the width of the container.
+     *
+     * @param source Provides the original frame, only called on a miss.
+     * @return The scaled image, or null if the source has no image.
+     */
+    public BufferedImage get(
+        File frame, Dimension container, GraphicsConfiguration gc,
+        Supplier<BufferedImage> source)
+    {
+        long expectedModification;
+        synchronized (this)
+        {
+            Entry entry = entries.get(frame);
+            if ((entry != null) && entry.container.equals(container))
+            {
+                hitCount += 1;
+                return entry.image;
+            }
+            missCount += 1;
+            expectedModification = modificationCount;
+        }
+        BufferedImage image = source.get();
+        if ((image == null) || (container.width <= 0) || (container.height <= 0))
+        {
+            return image;
+        }
+        BufferedImage scaled = scale(image, container.width, gc);
+        synchronized (this)
+        {
+            // -- The copy might have been made from a frame invalidated
+            //    meanwhile, do not keep it then.
+            if (modificationCount != expectedModification)
+            {
+                return scaled;
+            }
+            entries.put(frame, new Entry(new Dimension(container), scaled));
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (entries.size() > capacity)
+            {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Drops the copy of a frame, e.g. when its file is written again.
+     */
+    public synchronized void invalidate(File frame)
+    {
+        entries.remove(frame);
+        modificationCount += 1;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        modificationCount += 1;
+    }
+
+    public synchronized String getStatistics()
+    {
+        return "Display image cache: " + entries.size() + "/" + capacity +
+            " images, " + hitCount + " hits, " + missCount + " misses.";
+    }
+
+    private static BufferedImage scale(
+        BufferedImage image, int width, GraphicsConfiguration gc)
+    {
+        if ((gc == null) && !GraphicsEnvironment.isHeadless())
+        {
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        int height = Math.max(1,
+            (int) ((double) image.getHeight() * width / image.getWidth()));
+        BufferedImage scaled = gc != null ?
+            gc.createCompatibleImage(width, height, Transparency.OPAQUE) :
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+}
@@ -25,6 +25,21 @@
 package com.prampec.rivetcam;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Manages files and directories.
@@ -32,6 +47,9 @@ import java.io.File;
  * Created by kelemenb on 6/20/17.
  */
 public class FileManager {
+    private static final Logger logger =
+        LogManager.getLogger(FileManager.class);
+
     // -- TODO: introduce properties instead of using constants
     public final String directoryPrefix;
     public final int directoryIndexDigits;
@@ -43,6 +61,16 @@ public class FileManager {
 
     private File activeWorkingDirectory = null;
     private int nextFileIndex = 0;
+    /** Existing batch directories by their index. */
+    private TreeMap<Integer, File> batchIndex = null;
+    /** Highest frame index of batches already scanned, -1 for empty batches. */
+    private Map<Integer, Integer> highestFrameIndex = new HashMap<>();
+    /** Manifest of the active batch. */
+    private volatile FrameManifest activeManifest = null;
+    /** Changes of manifests are synced, following the image durability. */
+    private final boolean syncManifests;
+    /** Frames recorded to the active manifest are synced in groups. */
+    private final boolean groupSyncManifest;
 
     public FileManager(ConfigurationManager configurationManager) {
         directoryPrefix = configurationManager.directoryPrefix;
@@ -52,13 +80,17 @@ public class FileManager {
         fileIndexDigits = configurationManager.fileIndexDigits;
         baseDirectoryPath = configurationManager.baseDirectoryPath;
         restartFileIndexWithNewDirectory = configurationManager.restartFileIndexWithNewDirectory;
+        StillImageWriter.Durability durability = configurationManager.writerDurability;
+        groupSyncManifest = durability == StillImageWriter.Durability.GROUP;
+        syncManifests = groupSyncManifest || (durability == StillImageWriter.Durability.SYNC);
     }
 
     public String createNewWorkingDirectory()
     {
-        int i = 1;
+        TreeMap<Integer, File> batches = getBatchIndex();
+        int i = batches.isEmpty() ? 1 : batches.lastKey() + 1;
         activeWorkingDirectory = getDirectory(i);
-        // TODO: might want to use File.list, to pick the biggest index.
+        // -- Directory might have been created by someone else since the scan.
         while(activeWorkingDirectory.exists()) {
             i += 1;
             activeWorkingDirectory = getDirectory(i);
@@ -66,12 +98,149 @@ public class FileManager {
         if (!activeWorkingDirectory.mkdir()) {
             throw new IllegalStateException("Error creating working directory: " + activeWorkingDirectory.getAbsolutePath());
         }
+        batches.put(i, activeWorkingDirectory);
+        highestFrameIndex.put(i, -1);
+        activeManifest = FrameManifest.load(activeWorkingDirectory);
         if (restartFileIndexWithNewDirectory) {
             nextFileIndex = 0;
         }
         return  activeWorkingDirectory.getName();
     }
 
+    /**
+     * Continues the batch with the highest index, numbering frames after
+     * its last frame.
+     *
+     * @return Name of the resumed batch, or null if there are no batches.
+     */
+    public String resumeLastBatch()
+    {
+        TreeMap<Integer, File> batches = getBatchIndex();
+        if (batches.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, File> last = batches.lastEntry();
+        activeWorkingDirectory = last.getValue();
+        deleteStagingFiles(activeWorkingDirectory);
+        activeManifest = loadManifest(activeWorkingDirectory);
+        int highest = getHighestFrameIndex(last.getKey());
+        nextFileIndex = highest + 1;
+        if ((highest < 0) && !restartFileIndexWithNewDirectory) {
+            // -- Empty batch, continue numbering of the latest non-empty one.
+            for (Integer batch : batches.descendingKeySet()) {
+                int h = getHighestFrameIndex(batch);
+                if (h >= 0) {
+                    nextFileIndex = h + 1;
+                    break;
+                }
+            }
+        }
+        logger.info("Resuming batch " + activeWorkingDirectory.getName() + " at frame " + nextFileIndex);
+        return activeWorkingDirectory.getName();
+    }
+
+    /**
+     * Removes files of unfinished writes, left behind by a crash. Their
+     * frames were never reported saved, so nothing refers to them.
+     */
+    private void deleteStagingFiles(File directory) {
+        File[] staged = directory.listFiles((dir, name) ->
+                name.startsWith(".") && name.endsWith(StillImageWriter.TEMP_SUFFIX));
+        if (staged == null) {
+            return;
+        }
+        for (File file : staged) {
+            if (file.delete()) {
+                logger.info("Removed unfinished write " + file.getName());
+            } else {
+                logger.error("Cannot remove unfinished write " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Scans the base directory once for batch directories.
+     */
+    private TreeMap<Integer, File> getBatchIndex() {
+        if (batchIndex != null) {
+            return batchIndex;
+        }
+        batchIndex = new TreeMap<>();
+        Path base = Paths.get(baseDirectoryPath);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(base, directoryPrefix + "*")) {
+            for (Path path : stream) {
+                int index = parseIndex(path.getFileName().toString(), directoryPrefix, directoryIndexDigits, "");
+                if ((index >= 0) && Files.isDirectory(path)) {
+                    batchIndex.put(index, path.toFile());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // -- No base directory yet, so no batches either.
+        } catch (IOException e) {
+            logger.error("Error scanning batches in " + base.toAbsolutePath(), e);
+        }
+        logger.info("Found " + batchIndex.size() + " batches in " + base.toAbsolutePath());
+        return batchIndex;
+    }
+
+    /**
+     * Loads the manifest of a batch, adding frames missing from it: all
+     * frames of batches written before manifests were introduced, and
+     * frames written right before a crash.
+     */
+    private FrameManifest loadManifest(File directory) {
+        FrameManifest manifest = FrameManifest.load(directory);
+        List<FrameManifest.Entry> missing = new ArrayList<>();
+        if (manifest.exists()) {
+            File file;
+            for (int i = manifest.getHighestIndex() + 1; (file = getFile(directory, i)).exists(); i++) {
+                missing.add(createEntry(i, file));
+            }
+        } else {
+            for (File file : listFrameFiles(directory)) {
+                missing.add(createEntry(parseFileIndex(file.getName()), file));
+            }
+        }
+        if (!missing.isEmpty()) {
+            logger.info("Adding " + missing.size() + " frames to manifest of " + directory.getName());
+            manifest.addAll(missing);
+            syncManifest(manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Entry for a frame without capture information.
+     */
+    static FrameManifest.Entry createEntry(int index, File file) {
+        return new FrameManifest.Entry(
+                index, file.getName(), file.length(), file.lastModified(),
+                0, 0, Collections.<String, Integer>emptyMap());
+    }
+
+    private int getHighestFrameIndex(int batch) {
+        Integer highest = highestFrameIndex.get(batch);
+        if (highest == null) {
+            File directory = batchIndex.get(batch);
+            FrameManifest manifest = directory.equals(activeWorkingDirectory) ?
+                    activeManifest : FrameManifest.load(directory);
+            if (manifest.exists()) {
+                highest = manifest.getHighestIndex();
+                // -- Frames written after the last manifest update (crash).
+                while (getFile(directory, highest + 1).exists()) {
+                    highest += 1;
+                }
+            } else {
+                highest = -1;
+                for (File frame : listFrameFiles(directory)) {
+                    highest = Math.max(highest, parseFileIndex(frame.getName()));
+                }
+            }
+            highestFrameIndex.put(batch, highest);
+        }
+        return highest;
+    }
+
     public File getActiveWorkingDirectory()
     {
         return activeWorkingDirectory;
@@ -90,18 +259,186 @@ public class FileManager {
         return file;
     }
 
-    public String removeLast() {
-        if (nextFileIndex > 0) {
+    public File removeLast() {
+        return deleteFrame(getFrameCount() - 1);
+    }
+
+    /**
+     * Removes a frame of the active batch, frames after it move one
+     * position ahead.
+     *
+     * @param position Position of the frame in the batch.
+     * @return The removed frame, or null if there is no such frame.
+     */
+    public File deleteFrame(int position) {
+        FrameManifest manifest = activeManifest;
+        if ((manifest == null) || (position < 0) || (position >= manifest.size())) {
+            return null;
+        }
+        FrameManifest.Entry entry = manifest.getEntries().get(position);
+        File file = new File(activeWorkingDirectory, entry.fileName);
+        if (!file.delete() && file.exists()) {
+            throw new IllegalStateException(
+                    "Cannot remove file: " + file.getAbsolutePath());
+        }
+        manifest.remove(entry.index, entry.fileName);
+        syncManifest(manifest);
+        if (entry.index == nextFileIndex - 1) {
+            // -- Reuse the index, when the newest file was removed.
             nextFileIndex -= 1;
-            File file = getFile(nextFileIndex);
-            if (!file.delete()) {
-                throw new IllegalStateException(
-                        "Cannot remove last file: " + file.getAbsolutePath());
-            }
-            return formatName(file);
+        }
+        return file;
+    }
+
+    /**
+     * Moves a frame of the active batch to an other position, without
+     * renaming any file.
+     */
+    public void moveFrame(int from, int to) {
+        FrameManifest manifest = activeManifest;
+        List<FrameManifest.Entry> frames = new ArrayList<>(manifest.getEntries());
+        if ((from == to) || (from < 0) || (from >= frames.size())
+                || (to < 0) || (to >= frames.size())) {
+            return;
+        }
+        FrameManifest.Entry entry = frames.remove(from);
+        manifest.move(entry.fileName, to == 0 ? null : frames.get(to - 1).fileName);
+        syncManifest(manifest);
+    }
+
+    /**
+     * @return Number of frames in the active batch already written.
+     */
+    public int getFrameCount() {
+        FrameManifest manifest = activeManifest;
+        return manifest == null ? 0 : manifest.size();
+    }
+
+    /**
+     * Adds a written frame to the manifest of its batch, at the end, or at
+     * the position requested for the image.
+     */
+    public void recordFrame(StillImage image) {
+        File file = image.getFile();
+        File directory = file.getParentFile();
+        FrameManifest manifest = activeManifest;
+        if ((manifest == null) || !directory.equals(activeWorkingDirectory)) {
+            manifest = FrameManifest.load(directory);
+        }
+        FrameManifest.Entry entry = new FrameManifest.Entry(
+                parseFileIndex(file.getName()), file.getName(), file.length(),
+                image.getCaptureTime(), image.getWidth(), image.getHeight(),
+                image.getControls());
+        if (image.isInserted()) {
+            manifest.insertAfter(entry, image.getInsertAfter());
         } else {
+            manifest.add(entry);
+        }
+        // -- With group durability, frames of the active batch are synced
+        //    together by syncRecordedFrames().
+        if (!groupSyncManifest || (manifest != activeManifest)) {
+            syncManifest(manifest);
+        }
+    }
+
+    /**
+     * Syncs the frames recorded to the active manifest since the last
+     * call, used after a group of images was written.
+     */
+    public void syncRecordedFrames() {
+        FrameManifest manifest = activeManifest;
+        if (manifest != null) {
+            syncManifest(manifest);
+        }
+    }
+
+    private void syncManifest(FrameManifest manifest) {
+        if (syncManifests) {
+            manifest.sync();
+        }
+    }
+
+    /**
+     * @return File name of the frame at a position of the active batch, or
+     * null if there is no frame at that position.
+     */
+    public String getFrameName(int position) {
+        FrameManifest manifest = activeManifest;
+        if (manifest == null) {
             return null;
         }
+        List<FrameManifest.Entry> entries = manifest.getEntries();
+        if ((position < 0) || (position >= entries.size())) {
+            return null;
+        }
+        return entries.get(position).fileName;
+    }
+
+    /**
+     * @return Manifest of the active batch, or null if there is no batch.
+     */
+    public FrameManifest getActiveManifest() {
+        return activeManifest;
+    }
+
+    /**
+     * @return Written frames of the active batch, in their order.
+     */
+    public List<File> listFrameFiles() {
+        List<File> frames = new ArrayList<>();
+        FrameManifest manifest = activeManifest;
+        if (manifest != null) {
+            for (FrameManifest.Entry entry : manifest.getEntries()) {
+                frames.add(new File(activeWorkingDirectory, entry.fileName));
+            }
+        }
+        return frames;
+    }
+
+    List<File> listFrameFiles(File directory) {
+        List<File> frames = new ArrayList<>();
+        if (directory == null) {
+            return frames;
+        }
+        List<String> frameNames = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(directory.toPath(), filePrefix + "*" + filePostfix)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (parseFileIndex(name) >= 0) {
+                    frameNames.add(name);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error listing frames in " + directory, e);
+        }
+        // -- Index has fixed number of digits, so names sort by index.
+        Collections.sort(frameNames);
+        for (String name : frameNames) {
+            frames.add(new File(directory, name));
+        }
+        return frames;
+    }
+
+    /**
+     * @return Index of a frame file name, or -1 if the name is not a frame.
+     */
+    int parseFileIndex(String name) {
+        return parseIndex(name, filePrefix, fileIndexDigits, filePostfix);
+    }
+
+    static int parseIndex(String name, String prefix, int digits, String postfix) {
+        if (!name.startsWith(prefix) || !name.endsWith(postfix)
+                || (name.length() != prefix.length() + digits + postfix.length())) {
+            return -1;
+        }
+        String number = name.substring(prefix.length(), prefix.length() + digits);
+        for (int i = 0; i < number.length(); i++) {
+            if (!Character.isDigit(number.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(number);
     }
 
     private File getDirectory(int i) {
@@ -111,13 +448,17 @@ public class FileManager {
     }
 
     private File getFile(int i) {
+        return getFile(activeWorkingDirectory, i);
+    }
+
+    private File getFile(File directory, int i) {
         return new File(
-                activeWorkingDirectory,
+                directory,
                 filePrefix + String.format("%0" + fileIndexDigits + "d", i) + filePostfix);
     }
 
     public String formatName(File file) {
-        return activeWorkingDirectory.getName() + "/" + file.getName();
+        return file.getParentFile().getName() + "/" + file.getName();
     }
 
     public boolean hasBatch() {
@@ -0,0 +1,397 @@
+package com.prampec.rivetcam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only list of the frames of a batch with their capture
+ * information, stored in the batch directory. Each saved frame appends an
+ * entry, each removed frame appends a removal record, so the file is never
+ * rewritten, and can be loaded in a single read.
+ * <p>
+ * The manifest also holds the order of the frames, which is independent of
+ * the file names: a frame inserted or moved in the middle of the batch is
+ * a single record, no file needs to be renamed.
+ * <p>
+ * Format of a line, fields are separated by tabs:
+ * <pre>
+ * + index fileName byteSize captureTimeMs width height name=value;... [after]
+ * - index fileName
+ * &gt; fileName after
+ * </pre>
+ * where "after" is the name of the preceding frame, or ^ for the first
+ * position. Frames added without "after" go to the end.
+ */
+public class FrameManifest
+{
+    private static final Logger logger =
+        LogManager.getLogger(FrameManifest.class);
+
+    public static final String FILE_NAME = "frames.manifest";
+    private static final String HEADER = "# RivetCam frame manifest 1";
+    private static final String FIRST = "^";
+
+    private final File file;
+    /** Frames in their order. */
+    private final List<Entry> order = new ArrayList<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** Last line was left unterminated, e.g. by a crash. */
+    private boolean unterminated = false;
+    /** Lines were appended since the last sync(). */
+    private boolean unsynced = false;
+    /** The file was created since the last sync(). */
+    private boolean created = false;
+
+    /**
+     * A frame of the batch.
+     */
+    public static class Entry
+    {
+        public final int index;
+        public final String fileName;
+        public final long byteSize;
+        public final long captureTime;
+        public final int width;
+        public final int height;
+        public final Map<String, Integer> controls;
+
+        public Entry(
+            int index, String fileName, long byteSize, long captureTime,
+            int width, int height, Map<String, Integer> controls)
+        {
+            this.index = index;
+            this.fileName = fileName;
+            this.byteSize = byteSize;
+            this.captureTime = captureTime;
+            this.width = width;
+            this.height = height;
+            this.controls = controls;
+        }
+
+        String toLine()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("+\t").append(index)
+                .append('\t').append(fileName)
+                .append('\t').append(byteSize)
+                .append('\t').append(captureTime)
+                .append('\t').append(width)
+                .append('\t').append(height)
+                .append('\t');
+            boolean first = true;
+            for (Map.Entry<String, Integer> control : controls.entrySet())
+            {
+                if (!first)
+                {
+                    sb.append(';');
+                }
+                first = false;
+                sb.append(control.getKey()).append('=').append(control.getValue());
+            }
+            return sb.toString();
+        }
+
+        static Entry parse(String[] fields)
+        {
+            Map<String, Integer> controls = new TreeMap<>();
+            if ((fields.length > 7) && !fields[7].isEmpty())
+            {
+                for (String control : fields[7].split(";"))
+                {
+                    int eq = control.lastIndexOf('=');
+                    controls.put(
+                        control.substring(0, eq),
+                        Integer.parseInt(control.substring(eq + 1)));
+                }
+            }
+            return new Entry(
+                Integer.parseInt(fields[1]), fields[2],
+                Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+                Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+                controls);
+        }
+    }
+
+    private FrameManifest(File directory)
+    {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Reads the manifest of a batch directory.
+     *
+     * @return The manifest, empty if the batch has no manifest yet.
+     */
+    public static FrameManifest load(File directory)
+    {
+        FrameManifest manifest = new FrameManifest(directory);
+        byte[] content;
+        try
+        {
+            content = Files.readAllBytes(manifest.file.toPath());
+        }
+        catch (NoSuchFileException e)
+        {
+            return manifest;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot read manifest " + manifest.file, e);
+            return manifest;
+        }
+        manifest.unterminated =
+            (content.length > 0) && (content[content.length - 1] != '\n');
+        for (String line : new String(content, StandardCharsets.UTF_8).split("\n"))
+        {
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            try
+            {
+                String[] fields = line.split("\t", -1);
+                if ("+".equals(fields[0]))
+                {
+                    Entry entry = Entry.parse(fields);
+                    manifest.place(entry, fields.length > 8 ? fields[8] : null);
+                }
+                else if ("-".equals(fields[0]))
+                {
+                    manifest.unplace(fields[2]);
+                }
+                else if (">".equals(fields[0]))
+                {
+                    Entry entry = manifest.entries.get(fields[1]);
+                    if (entry != null)
+                    {
+                        manifest.place(entry, fields[2]);
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // -- Probably a line truncated by a crash.
+                logger.error("Ignoring invalid manifest line in " +
+                    manifest.file + ": " + line);
+            }
+        }
+        return manifest;
+    }
+
+    public boolean exists()
+    {
+        return file.exists();
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Adds a frame to the end.
+     */
+    public synchronized void add(Entry entry)
+    {
+        place(entry, null);
+        appendLine(entry.toLine());
+    }
+
+    /**
+     * Adds frames to the end with a single write.
+     */
+    public synchronized void addAll(List<Entry> newEntries)
+    {
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : newEntries)
+        {
+            place(entry, null);
+            if (lines.length() > 0)
+            {
+                lines.append('\n');
+            }
+            lines.append(entry.toLine());
+        }
+        if (lines.length() > 0)
+        {
+            appendLine(lines.toString());
+        }
+    }
+
+    /**
+     * Adds a frame after an other one.
+     *
+     * @param after Name of the preceding frame, null for the first
+     * position.
+     */
+    public synchronized void insertAfter(Entry entry, String after)
+    {
+        String position = after == null ? FIRST : after;
+        place(entry, position);
+        appendLine(entry.toLine() + "\t" + position);
+    }
+
+    /**
+     * Moves a frame after an other one.
+     *
+     * @param after Name of the preceding frame, null for the first
+     * position.
+     */
+    public synchronized void move(String fileName, String after)
+    {
+        Entry entry = entries.get(fileName);
+        if (entry == null)
+        {
+            throw new IllegalStateException(
+                "Frame " + fileName + " is not in the manifest " + file);
+        }
+        String position = after == null ? FIRST : after;
+        place(entry, position);
+        appendLine(">\t" + fileName + "\t" + position);
+    }
+
+    public synchronized void remove(int index, String fileName)
+    {
+        unplace(fileName);
+        appendLine("-\t" + index + "\t" + fileName);
+    }
+
+    /**
+     * @return Entries of the existing frames, in their order.
+     */
+    public synchronized List<Entry> getEntries()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(order));
+    }
+
+    public synchronized int size()
+    {
+        return order.size();
+    }
+
+    /**
+     * @return Highest frame index in the manifest, -1 if empty.
+     */
+    public synchronized int getHighestIndex()
+    {
+        int highest = -1;
+        for (Entry entry : order)
+        {
+            highest = Math.max(highest, entry.index);
+        }
+        return highest;
+    }
+
+    /**
+     * @param position Name of the preceding frame, FIRST, or null for the
+     * end. Unknown names also put the frame to the end.
+     */
+    private void place(Entry entry, String position)
+    {
+        unplace(entry.fileName);
+        entries.put(entry.fileName, entry);
+        int at = order.size();
+        if (FIRST.equals(position))
+        {
+            at = 0;
+        }
+        else if (position != null)
+        {
+            Entry previous = entries.get(position);
+            if (previous != null)
+            {
+                at = order.indexOf(previous) + 1;
+            }
+        }
+        order.add(at, entry);
+    }
+
+    private void unplace(String fileName)
+    {
+        Entry entry = entries.remove(fileName);
+        if (entry != null)
+        {
+            order.remove(entry);
+        }
+    }
+
+    /**
+     * Makes the lines appended so far durable: syncs the file to the
+     * storage, and its directory if the file was created.
+     */
+    public synchronized void sync()
+    {
+        if (!unsynced)
+        {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(
+            file.toPath(), StandardOpenOption.WRITE))
+        {
+            channel.force(false);
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot sync manifest " + file, e);
+            return;
+        }
+        unsynced = false;
+        if (created)
+        {
+            created = false;
+            try (FileChannel channel = FileChannel.open(
+                file.getAbsoluteFile().getParentFile().toPath(),
+                StandardOpenOption.READ))
+            {
+                channel.force(true);
+            }
+            catch (IOException e)
+            {
+                // -- Not every platform can sync a directory.
+                logger.debug("Cannot sync directory of " + file, e);
+            }
+        }
+    }
+
+    private void appendLine(String line)
+    {
+        boolean isNew = !file.exists();
+        try (Writer writer = new OutputStreamWriter(
+            new FileOutputStream(file, true), StandardCharsets.UTF_8))
+        {
+            if (isNew)
+            {
+                writer.write(HEADER + "\n");
+            }
+            else if (unterminated)
+            {
+                writer.write("\n");
+            }
+            unterminated = false;
+            writer.write(line + "\n");
+            unsynced = true;
+            created |= isNew;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot append to manifest " + file, e);
+        }
+    }
+}
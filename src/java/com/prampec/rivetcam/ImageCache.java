@@ -0,0 +1,61 @@
+package com.prampec.rivetcam;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * Cache of the last captured images, used by the preview, the playback and
+ * the onion skin. Implementations must be thread safe.
+ */
+public interface ImageCache
+{
+    /**
+     * Adds the newest image, dropping the oldest one if the cache is full.
+     */
+    void add(StillImage image);
+
+    /**
+     * Adds an image older than all images in the cache, e.g. when the
+     * cache is filled up from disk.
+     *
+     * @return False if the cache cannot take more images.
+     */
+    boolean addOldest(StillImage image);
+
+    /**
+     * The returned image might be reused by the cache for decoding other
+     * images: it is only valid until the next call of this method from an
+     * other place, as the cache keeps just a few images decoded. Copy it to
+     * keep it longer, like DisplayImageCache does.
+     *
+     * @param index 0 is the oldest image, size() - 1 is the newest one.
+     * @return The decoded image, or null if it cannot be decoded.
+     */
+    BufferedImage getImage(int index);
+
+    /**
+     * @param index 0 is the oldest image, size() - 1 is the newest one.
+     * @return File of the image, without decoding it.
+     */
+    File getFile(int index);
+
+    void removeLast();
+
+    /**
+     * Removes the image of a file, e.g. when it could not be written.
+     * Newer images move one index ahead.
+     *
+     * @return False if the file has no image in the cache.
+     */
+    boolean remove(File file);
+
+    void clear();
+
+    int size();
+
+    boolean isEmpty();
+
+    int getCapacity();
+
+    String getStatistics();
+}
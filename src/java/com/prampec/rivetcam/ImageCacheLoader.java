@@ -0,0 +1,186 @@
+package com.prampec.rivetcam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fills up the image cache with the frames of the batch on disk, the most
+ * recent ones first, in the background. Images are read and decoded in
+ * parallel by a bounded pool of low priority threads.
+ */
+public class ImageCacheLoader
+{
+    private static final Logger logger =
+        LogManager.getLogger(ImageCacheLoader.class);
+
+    private final ImageCache imageCache;
+    private final boolean decode;
+    private final ExecutorService coordinator;
+    private final ExecutorService readers;
+    private final int threads;
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * @param decode True if images should be decoded when loaded, false if
+     * the cache keeps compressed images anyway.
+     */
+    public ImageCacheLoader(ImageCache imageCache, boolean decode, int threads)
+    {
+        this.imageCache = imageCache;
+        this.decode = decode;
+        this.threads = Math.max(1, threads);
+        coordinator = Executors.newSingleThreadExecutor(
+            lowPriorityThreads("cache-loader"));
+        readers = Executors.newFixedThreadPool(
+            this.threads, lowPriorityThreads("cache-reader"));
+    }
+
+    /**
+     * Loads the frames preceding the ones already in the cache. Any warm-up
+     * still in progress is cancelled.
+     *
+     * @param frames All frames of the batch in order. The cache is expected
+     * to contain the last frames of this list.
+     */
+    public void warmUp(List<File> frames)
+    {
+        int myGeneration = nextGeneration();
+        List<File> copy = new ArrayList<>(frames);
+        // -- The cache is measured by the coordinator, after the previous
+        //    warm-up stopped adding to it.
+        coordinator.execute(() -> load(copy, myGeneration));
+    }
+
+    /**
+     * Stops the warm-up in progress, e.g. when the cache is cleared. No
+     * image of the cancelled warm-up is added after this returns.
+     */
+    public void cancel()
+    {
+        nextGeneration();
+    }
+
+    private synchronized int nextGeneration()
+    {
+        return generation.incrementAndGet();
+    }
+
+    /**
+     * Adds the image unless the warm-up was cancelled meanwhile. The check
+     * and the add are atomic with respect to cancel().
+     */
+    private synchronized boolean addIfCurrent(StillImage image, int myGeneration)
+    {
+        return (generation.get() == myGeneration) &&
+            imageCache.addOldest(image);
+    }
+
+    public void shutdown()
+    {
+        cancel();
+        coordinator.shutdownNow();
+        readers.shutdownNow();
+    }
+
+    private void load(List<File> frames, int myGeneration)
+    {
+        if (generation.get() != myGeneration)
+        {
+            return;
+        }
+        int cached = imageCache.size();
+        int end = frames.size() - cached; // -- Exclusive, newest missing.
+        int count = Math.min(imageCache.getCapacity() - cached, end);
+        if (count <= 0)
+        {
+            return;
+        }
+        List<File> newestFirst = new ArrayList<>(count);
+        for (int i = end - 1; i >= end - count; i--)
+        {
+            newestFirst.add(frames.get(i));
+        }
+
+        long start = System.currentTimeMillis();
+        int loaded = 0;
+        // -- Keep a limited window of reads ahead, so a cancelled warm-up
+        //    does not leave much work behind.
+        List<Future<StillImage>> window = new ArrayList<>();
+        int next = 0;
+        try
+        {
+            while (generation.get() == myGeneration)
+            {
+                while ((next < newestFirst.size()) &&
+                    (window.size() < 2 * threads))
+                {
+                    File file = newestFirst.get(next++);
+                    window.add(readers.submit(() -> read(file)));
+                }
+                if (window.isEmpty())
+                {
+                    break;
+                }
+                StillImage image = window.remove(0).get();
+                if (!addIfCurrent(image, myGeneration))
+                {
+                    break;
+                }
+                loaded += 1;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Error loading image to cache.", e.getCause());
+        }
+        finally
+        {
+            for (Future<StillImage> future : window)
+            {
+                future.cancel(true);
+            }
+        }
+        logger.info("Loaded " + loaded + " images to cache in " +
+            (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    private StillImage read(File file) throws IOException
+    {
+        StillImage image =
+            new StillImage(file, Files.readAllBytes(file.toPath()));
+        image.setPersisted();
+        if (decode)
+        {
+            image.getImage();
+        }
+        return image;
+    }
+
+    private static ThreadFactory lowPriorityThreads(String name)
+    {
+        AtomicInteger counter = new AtomicInteger();
+        return r ->
+        {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,142 @@
+package com.prampec.rivetcam;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.prampec.rivetcam.source.CapturedFrame;
+
+/**
+ * Hands over live view frames from the capture thread to the painter.
+ * Only the latest frame is kept in its compressed form, and it is decoded
+ * when the painter actually needs it, so frames arriving faster than the
+ * display can show are skipped without being decoded.
+ */
+public class LatestFrameSlot
+{
+    private static final Logger logger =
+        LogManager.getLogger(LatestFrameSlot.class);
+
+    private final AtomicReference<Frame> pending = new AtomicReference<>();
+    private final AtomicReference<byte[]> spareBuffer = new AtomicReference<>();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    // -- Accessed from the painter thread only.
+    private ImageReader reader = null;
+    private BufferedImage current = null;
+
+    /**
+     * Stores the frame, replacing the one not yet painted. Called on the
+     * capture thread; the frame can be recycled after this call.
+     *
+     * @return True if the painter must be notified, false if a notification
+     * is already pending for the previous frame.
+     */
+    public boolean publish(CapturedFrame frame)
+    {
+        int length = frame.getFrameLength();
+        byte[] buffer = spareBuffer.getAndSet(null);
+        if ((buffer == null) || (buffer.length < length))
+        {
+            buffer = new byte[length + length / 4];
+        }
+        System.arraycopy(frame.getBytes(), 0, buffer, 0, length);
+
+        Frame previous = pending.getAndSet(new Frame(buffer, length));
+        publishedCount.incrementAndGet();
+        if (previous != null)
+        {
+            skippedCount.incrementAndGet();
+            spareBuffer.set(previous.data);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the latest frame if a new one has arrived. Called on the
+     * painter thread.
+     *
+     * @return The image to paint, or null if there was no frame yet.
+     */
+    public BufferedImage takeImage()
+    {
+        Frame frame = pending.getAndSet(null);
+        if (frame != null)
+        {
+            try
+            {
+                current = decode(frame);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.error("Cannot decode live frame.", e);
+            }
+            spareBuffer.compareAndSet(null, frame.data);
+        }
+        return current;
+    }
+
+    private BufferedImage decode(Frame frame) throws IOException
+    {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(
+            new ByteArrayInputStream(frame.data, 0, frame.length)))
+        {
+            if (reader == null)
+            {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (!readers.hasNext())
+                {
+                    throw new IOException("No reader for live frame.");
+                }
+                reader = readers.next();
+            }
+            reader.setInput(iis, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if ((current != null) &&
+                (current.getWidth() == reader.getWidth(0)) &&
+                (current.getHeight() == reader.getHeight(0)))
+            {
+                // -- Reuse the raster of the previous frame.
+                param.setDestination(current);
+            }
+            return reader.read(0, param);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                reader.setInput(null);
+            }
+        }
+    }
+
+    public String getStatistics()
+    {
+        return "Live frames published: " + publishedCount.get() +
+            ", skipped without decode: " + skippedCount.get();
+    }
+
+    private static class Frame
+    {
+        final byte[] data;
+        final int length;
+
+        Frame(byte[] data, int length)
+        {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
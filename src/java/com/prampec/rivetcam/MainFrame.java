@@ -26,6 +26,11 @@ package com.prampec.rivetcam;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+
+import com.prampec.rivetcam.archive.BatchArchive;
+import com.prampec.util.PropertiesHelper;
 
 /**
  * The full screen application window.
@@ -35,7 +40,10 @@ public class MainFrame extends JFrame {
     private static final org.apache.logging.log4j.Logger logger =
         org.apache.logging.log4j.LogManager.getLogger(MainFrame.class);
 
-    JPanel imageContainer;
+    /** Component the images are painted on. */
+    Component imageContainer;
+    /** Set in active render mode only. */
+    private ActiveRenderer activeRenderer;
     private AppController appController;
     private ConfigurationManager configurationManager;
 
@@ -48,6 +56,18 @@ public class MainFrame extends JFrame {
             else if ("--info".equals(arg)) {
                 CameraTools.dumpDeviceInfo(args[1]);
             }
+            else if ("--export".equals(arg) && (args.length >= 3)) {
+                exportSequence(args);
+            }
+            else if ("--pack".equals(arg) && (args.length >= 3)) {
+                packBatch(args);
+            }
+            else if ("--unpack".equals(arg) && (args.length >= 3)) {
+                unpackBatch(args);
+            }
+            else if ("--verify".equals(arg) && (args.length >= 2)) {
+                verifyBatches(args);
+            }
             else {
                 logger.error("Unknown argument '" + arg + "'");
             }
@@ -99,18 +119,95 @@ public class MainFrame extends JFrame {
     }
 
 
+    /**
+     * Exports a batch as downscaled images:
+     * --export batchDirectory outputDirectory [maxSize [quality]]
+     */
+    private static void exportSequence(String[] args) {
+        Dimension maxSize = args.length > 3 ?
+            PropertiesHelper.parseDimension(args[3]) : new Dimension(1280, 720);
+        int quality = args.length > 4 ? Integer.parseInt(args[4]) : 85;
+        SequenceExporter exporter = new SequenceExporter(
+            maxSize, quality, Runtime.getRuntime().availableProcessors(), false);
+        try {
+            int count = exporter.export(new File(args[1]), new File(args[2]));
+            System.out.println(count + " frames exported to " + args[2]);
+        } catch (IOException e) {
+            logger.error("Export failed.", e);
+        } finally {
+            exporter.shutdown();
+        }
+    }
+
+    /**
+     * Archives a batch: --pack batchDirectory archiveFile [keyframeInterval]
+     */
+    private static void packBatch(String[] args) {
+        int keyframeInterval = args.length > 3 ?
+            Integer.parseInt(args[3]) : BatchArchive.DEFAULT_KEYFRAME_INTERVAL;
+        try {
+            int count = BatchArchive.pack(new File(args[1]), new File(args[2]), keyframeInterval);
+            System.out.println(count + " frames packed to " + args[2]);
+        } catch (IOException e) {
+            logger.error("Packing failed.", e);
+        }
+    }
+
+    /**
+     * Restores an archived batch: --unpack archiveFile outputDirectory
+     */
+    private static void unpackBatch(String[] args) {
+        try {
+            int count = BatchArchive.unpack(new File(args[1]), new File(args[2]));
+            System.out.println(count + " files unpacked to " + args[2]);
+        } catch (IOException e) {
+            logger.error("Unpacking failed.", e);
+        }
+    }
+
+    /**
+     * Checks all batches, using the naming scheme of setup.properties:
+     * --verify baseDirectory [--repair]
+     */
+    private static void verifyBatches(String[] args) {
+        boolean repair = (args.length > 2) && "--repair".equals(args[2]);
+        BatchVerifier verifier = new BatchVerifier(
+            new FileManager(new ConfigurationManager()), new File(args[1]), repair,
+            Runtime.getRuntime().availableProcessors(), System.out);
+        try {
+            verifier.verify();
+        } catch (IOException e) {
+            logger.error("Verification failed.", e);
+        } finally {
+            verifier.shutdown();
+        }
+    }
+
     public MainFrame(ConfigurationManager configurationManager) {
         this.configurationManager = configurationManager;
 
-        imageContainer = new JPanel() {
-            @Override
-            protected void paintComponent(Graphics g) {
-                super.paintComponent(g);
-                appController.paint(g);
-            }
-        };
-
-        setContentPane(imageContainer);
+        if (configurationManager.activeRendering) {
+            Canvas canvas = new Canvas();
+            canvas.setBackground(Color.black);
+            activeRenderer = new ActiveRenderer(
+                canvas, g -> appController.paint(g), configurationManager.activeRenderFps);
+            JPanel contentPane = new JPanel(new BorderLayout());
+            contentPane.add(canvas, BorderLayout.CENTER);
+            setContentPane(contentPane);
+            setIgnoreRepaint(true);
+            imageContainer = canvas;
+        }
+        else {
+            JPanel panel = new JPanel() {
+                @Override
+                protected void paintComponent(Graphics g) {
+                    super.paintComponent(g);
+                    appController.paint(g);
+                }
+            };
+            setContentPane(panel);
+            imageContainer = panel;
+        }
 //        setModal(true);
         this.setExtendedState(JFrame.MAXIMIZED_BOTH);
         this.setUndecorated(true);
@@ -156,6 +253,16 @@ public class MainFrame extends JFrame {
             appController.snapshot();
         } else if (e.getKeyCode() == KeyEvent.VK_B) {
             appController.createNewBatch();
+        } else if (e.getKeyCode() == KeyEvent.VK_C) {
+            appController.cancelBackgroundWork();
+        } else if (e.getKeyCode() == KeyEvent.VK_DELETE) {
+            appController.removeShownImage();
+        } else if (e.getKeyCode() == KeyEvent.VK_INSERT) {
+            appController.insertAfterShownImage();
+        } else if (e.isShiftDown() && (e.getKeyCode() == KeyEvent.VK_RIGHT)) {
+            appController.moveShownImage(1);
+        } else if (e.isShiftDown() && (e.getKeyCode() == KeyEvent.VK_LEFT)) {
+            appController.moveShownImage(-1);
         } else if (e.getKeyCode() == KeyEvent.VK_RIGHT) {
             appController.showNextImage();
         } else if (e.getKeyCode() == KeyEvent.VK_LEFT) {
@@ -191,24 +298,52 @@ public class MainFrame extends JFrame {
     @Override
     public void setVisible(boolean visible) {
         super.setVisible(visible);
+        if (visible && (activeRenderer != null)) {
+            activeRenderer.start();
+            activeRenderer.requestFrame();
+        }
         if (visible) {
             appController.startWelcomeMessage();
         }
     }
     @Override
     public void dispose() {
+        if (activeRenderer != null) {
+            activeRenderer.shutdown();
+        }
         appController.shutdown();
         super.dispose();
     }
 
     void repaintImage()
     {
+        if (activeRenderer != null) {
+            activeRenderer.requestFrame();
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             imageContainer.repaint();
             Toolkit.getDefaultToolkit().sync();
         });
     }
 
+    /**
+     * Repaints a region of the image only, e.g. the on screen display.
+     */
+    void repaintImage(Rectangle region)
+    {
+        if (activeRenderer != null) {
+            // -- Frames are always rendered whole.
+            activeRenderer.requestFrame();
+            return;
+        }
+        if (region.isEmpty()) {
+            return;
+        }
+        SwingUtilities.invokeLater(() ->
+            imageContainer.repaint(region.x, region.y, region.width, region.height));
+    }
+
     public Dimension getImageDimension()
     {
         return new Dimension(imageContainer.getWidth(), imageContainer.getHeight());
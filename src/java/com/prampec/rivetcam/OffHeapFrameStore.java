@@ -0,0 +1,189 @@
+package com.prampec.rivetcam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.prampec.util.ByteBufferInputStream;
+
+/**
+ * Stores compressed frames outside of the Java heap, either in direct
+ * memory or in a memory mapped spill file. The store is a circular log:
+ * when it is full, new frames overwrite the oldest ones, and the
+ * overwritten slots become invalid.
+ */
+public class OffHeapFrameStore
+{
+    private final ByteBuffer buffer;
+    private final Deque<Slot> slots = new ArrayDeque<>();
+    private int writePosition = 0;
+    private long usedBytes = 0;
+
+    /**
+     * Location of a stored frame.
+     */
+    public static class Slot
+    {
+        private final int offset;
+        private final int length;
+        private boolean valid = true;
+
+        private Slot(int offset, int length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private OffHeapFrameStore(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a store in direct memory.
+     */
+    public static OffHeapFrameStore allocateDirect(int capacity)
+    {
+        return new OffHeapFrameStore(ByteBuffer.allocateDirect(capacity));
+    }
+
+    /**
+     * Creates a store backed by a memory mapped file. The file is
+     * overwritten, and removed when the application exits.
+     */
+    public static OffHeapFrameStore mapFile(File file, int capacity)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE))
+        {
+            file.deleteOnExit();
+            // -- The mapping stays valid after the channel is closed.
+            return new OffHeapFrameStore(
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    /**
+     * Copies a frame into the store.
+     *
+     * @return The slot of the frame, or null if the frame is larger than
+     * the whole store.
+     */
+    public synchronized Slot store(byte[] data, int length)
+    {
+        if (length > buffer.capacity())
+        {
+            return null;
+        }
+        if (writePosition + length > buffer.capacity())
+        {
+            writePosition = 0;
+        }
+        int end = writePosition + length;
+        // -- Slots are in allocation order, so the overlapped ones are the
+        //    oldest ones.
+        while (!slots.isEmpty())
+        {
+            Slot oldest = slots.peekFirst();
+            boolean overlaps =
+                (oldest.offset < end) &&
+                (oldest.offset + oldest.length > writePosition);
+            if (!overlaps)
+            {
+                break;
+            }
+            slots.removeFirst();
+            invalidate(oldest);
+        }
+
+        ByteBuffer target = buffer.duplicate();
+        target.position(writePosition);
+        target.put(data, 0, length);
+
+        Slot slot = new Slot(writePosition, length);
+        slots.addLast(slot);
+        usedBytes += length;
+        writePosition = end;
+        return slot;
+    }
+
+    /**
+     * @return Stream of the stored frame, or null if the slot was already
+     * overwritten. The stream must be consumed before the next frame is
+     * stored.
+     */
+    public synchronized InputStream open(Slot slot)
+    {
+        if ((slot == null) || !slot.valid)
+        {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(slot.offset + slot.length);
+        view.position(slot.offset);
+        return new ByteBufferInputStream(view.slice());
+    }
+
+    /**
+     * @return Copy of the stored frame, or null if the slot was already
+     * overwritten.
+     */
+    public synchronized byte[] copy(Slot slot)
+    {
+        if ((slot == null) || !slot.valid)
+        {
+            return null;
+        }
+        byte[] data = new byte[slot.length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(slot.offset);
+        view.get(data);
+        return data;
+    }
+
+    public synchronized boolean isValid(Slot slot)
+    {
+        return (slot != null) && slot.valid;
+    }
+
+    /**
+     * Marks the slot as no longer needed. Its space is reused when the
+     * write position reaches it.
+     */
+    public synchronized void free(Slot slot)
+    {
+        if (slot != null)
+        {
+            invalidate(slot);
+        }
+    }
+
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    public int getCapacity()
+    {
+        return buffer.capacity();
+    }
+
+    private void invalidate(Slot slot)
+    {
+        if (slot.valid)
+        {
+            slot.valid = false;
+            usedBytes -= slot.length;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.prampec.rivetcam;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Image cache keeping the compressed frames in an OffHeapFrameStore, and
+ * only a few decoded images on the heap. Decoding reuses the rasters of
+ * images no longer needed, so browsing through a long batch creates little
+ * garbage. Frames overwritten in the store are read from disk again.
+ * <p>
+ * All operations are serialized, as decoded images share a pool of
+ * rasters, except for decoding: the compressed frame is copied out of the
+ * store, and decoded without holding the lock.
+ */
+public class OffHeapImageCache implements ImageCache
+{
+    private static final Logger logger =
+        LogManager.getLogger(OffHeapImageCache.class);
+
+    private final Entry[] ring;
+    private final OffHeapFrameStore store;
+    private final int decodedCapacity;
+    private final LinkedHashMap<Entry, BufferedImage> decoded =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final Deque<BufferedImage> rasterPool = new ArrayDeque<>();
+    private ImageReader reader = null;
+    private int head = 0;
+    private int size = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long diskReadCount = 0;
+    private long evictionCount = 0;
+
+    private static class Entry
+    {
+        final File file;
+        /** Kept until written to disk, as the store might overwrite it. */
+        StillImage pending;
+        OffHeapFrameStore.Slot slot;
+        /** The decoded image was made by this cache, its raster can be reused. */
+        boolean ownsDecoded;
+        /** Removed from the cache, e.g. while being decoded. */
+        boolean dropped;
+
+        Entry(File file, StillImage pending)
+        {
+            this.file = file;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * @param capacity Maximal number of images, at least one is kept.
+     * @param store Storage of the compressed images.
+     * @param decodedCapacity Number of decoded images kept on the heap.
+     */
+    public OffHeapImageCache(
+        int capacity, OffHeapFrameStore store, int decodedCapacity)
+    {
+        this.ring = new Entry[Math.max(1, capacity)];
+        this.store = store;
+        this.decodedCapacity = Math.max(1, decodedCapacity);
+    }
+
+    @Override
+    public synchronized void add(StillImage image)
+    {
+        if (size == ring.length)
+        {
+            drop(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size -= 1;
+            evictionCount += 1;
+        }
+        Entry entry = new Entry(image.getFile(), image);
+        byte[] jpegData = image.getJpegData();
+        if (jpegData != null)
+        {
+            entry.slot = store.store(jpegData, jpegData.length);
+        }
+        ring[slot(size)] = entry;
+        size += 1;
+    }
+
+    @Override
+    public synchronized boolean addOldest(StillImage image)
+    {
+        if (size == ring.length)
+        {
+            return false;
+        }
+        byte[] jpegData = image.getJpegData();
+        if ((jpegData == null) ||
+            (store.getUsedBytes() + jpegData.length > store.getCapacity()))
+        {
+            // -- Storing it would overwrite newer images.
+            return false;
+        }
+        Entry entry = new Entry(image.getFile(), null);
+        entry.slot = store.store(jpegData, jpegData.length);
+        head = (head - 1 + ring.length) % ring.length;
+        ring[head] = entry;
+        size += 1;
+        return true;
+    }
+
+    @Override
+    public synchronized File getFile(int index)
+    {
+        if ((index < 0) || (index >= size))
+        {
+            throw new IndexOutOfBoundsException(
+                "Index " + index + " of cache with size " + size);
+        }
+        return ring[slot(index)].file;
+    }
+
+    /**
+     * The returned image is overwritten when it was decoded by this cache,
+     * and decodedCapacity further images are decoded.
+     */
+    @Override
+    public BufferedImage getImage(int index)
+    {
+        Entry entry;
+        byte[] data;
+        StillImage pending;
+        synchronized (this)
+        {
+            if ((index < 0) || (index >= size))
+            {
+                throw new IndexOutOfBoundsException(
+                    "Index " + index + " of cache with size " + size);
+            }
+            entry = ring[slot(index)];
+            if ((entry.pending != null) && entry.pending.isPersisted())
+            {
+                entry.pending = null;
+            }
+
+            BufferedImage image = decoded.get(entry);
+            if (image != null)
+            {
+                hitCount += 1;
+                return image;
+            }
+            missCount += 1;
+            // -- Copied, as the store might overwrite it while decoding.
+            data = store.copy(entry.slot);
+            pending = entry.pending;
+        }
+
+        BufferedImage image;
+        boolean owned = (pending == null) || (data != null);
+        boolean fromDisk = false;
+        try
+        {
+            if (!owned)
+            {
+                // -- Not yet on disk and not in the store, use the heap copy.
+                image = pending.getImage();
+            }
+            else
+            {
+                if (data == null)
+                {
+                    data = Files.readAllBytes(entry.file.toPath());
+                    fromDisk = true;
+                }
+                image = decode(data);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot decode image " + entry.file, e);
+            image = null;
+        }
+
+        synchronized (this)
+        {
+            if (fromDisk)
+            {
+                diskReadCount += 1;
+                if (!entry.dropped)
+                {
+                    entry.slot = store.store(data, data.length);
+                }
+            }
+            if ((image == null) || entry.dropped)
+            {
+                return image;
+            }
+            BufferedImage other = decoded.get(entry);
+            if (other != null)
+            {
+                // -- Decoded by an other thread meanwhile.
+                if (owned && (rasterPool.size() < decodedCapacity))
+                {
+                    rasterPool.addLast(image);
+                }
+                return other;
+            }
+            entry.ownsDecoded = owned;
+            decoded.put(entry, image);
+            trimDecoded();
+            return image;
+        }
+    }
+
+    private BufferedImage decode(byte[] data) throws IOException
+    {
+        ImageReader decoder = takeReader();
+        try (ImageInputStream iis =
+            ImageIO.createImageInputStream(new ByteArrayInputStream(data)))
+        {
+            decoder.setInput(iis, true, true);
+            ImageReadParam param = decoder.getDefaultReadParam();
+            BufferedImage destination;
+            synchronized (this)
+            {
+                destination =
+                    takeFromPool(decoder.getWidth(0), decoder.getHeight(0));
+            }
+            if (destination != null)
+            {
+                param.setDestination(destination);
+            }
+            return decoder.read(0, param);
+        }
+        finally
+        {
+            decoder.setInput(null);
+            returnReader(decoder);
+        }
+    }
+
+    /**
+     * @return The idle reader, or a new one if it is in use.
+     */
+    private synchronized ImageReader takeReader() throws IOException
+    {
+        ImageReader taken = reader;
+        reader = null;
+        if (taken == null)
+        {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpg");
+            if (!readers.hasNext())
+            {
+                throw new IOException("No JPEG reader available.");
+            }
+            taken = readers.next();
+        }
+        return taken;
+    }
+
+    private synchronized void returnReader(ImageReader taken)
+    {
+        if (reader == null)
+        {
+            reader = taken;
+        }
+        else
+        {
+            taken.dispose();
+        }
+    }
+
+    private BufferedImage takeFromPool(int width, int height)
+    {
+        Iterator<BufferedImage> iterator = rasterPool.iterator();
+        while (iterator.hasNext())
+        {
+            BufferedImage image = iterator.next();
+            if ((image.getWidth() == width) && (image.getHeight() == height))
+            {
+                iterator.remove();
+                return image;
+            }
+        }
+        return null;
+    }
+
+    private void trimDecoded()
+    {
+        Iterator<Map.Entry<Entry, BufferedImage>> iterator =
+            decoded.entrySet().iterator();
+        while ((decoded.size() > decodedCapacity) && iterator.hasNext())
+        {
+            Map.Entry<Entry, BufferedImage> eldest = iterator.next();
+            iterator.remove();
+            recycle(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void recycle(Entry entry, BufferedImage image)
+    {
+        // -- Images of a StillImage are not ours to reuse, even after it
+        //    was written and is no longer pending.
+        if (entry.ownsDecoded && (rasterPool.size() < decodedCapacity))
+        {
+            rasterPool.addLast(image);
+        }
+    }
+
+    private void drop(Entry entry)
+    {
+        entry.dropped = true;
+        BufferedImage image = decoded.remove(entry);
+        if (image != null)
+        {
+            recycle(entry, image);
+        }
+        store.free(entry.slot);
+    }
+
+    @Override
+    public synchronized void removeLast()
+    {
+        if (size > 0)
+        {
+            int slot = slot(size - 1);
+            drop(ring[slot]);
+            ring[slot] = null;
+            size -= 1;
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(File file)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (ring[slot(i)].file.equals(file))
+            {
+                drop(ring[slot(i)]);
+                for (int j = i; j < size - 1; j++)
+                {
+                    ring[slot(j)] = ring[slot(j + 1)];
+                }
+                ring[slot(size - 1)] = null;
+                size -= 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            int slot = slot(i);
+            drop(ring[slot]);
+            ring[slot] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+
+    @Override
+    public synchronized String getStatistics()
+    {
+        return "Off-heap image cache size: " + size + "/" + ring.length +
+            ", store: " + (store.getUsedBytes() / 1024) + "/" +
+            (store.getCapacity() / 1024) + " kB" +
+            ", decoded: " + decoded.size() + "/" + decodedCapacity +
+            ", hits: " + hitCount +
+            ", misses: " + missCount +
+            ", disk reads: " + diskReadCount +
+            ", evictions: " + evictionCount;
+    }
+
+    private int slot(int index)
+    {
+        return (head + index) % ring.length;
+    }
+}
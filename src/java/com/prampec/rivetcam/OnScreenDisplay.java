@@ -24,74 +24,247 @@
 
 package com.prampec.rivetcam;
 
-import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class to handle messages to be displayed on the screen.
  * Created by kelemenb on 6/19/17.
+ * <p>
+ * Messages are kept in a fixed number of slots updated without locking,
+ * each message disappears MESSAGE_ON_SCREEN_MS after it was added. A
+ * single scheduled wake-up removes the next expiring messages, however
+ * many messages arrive meanwhile.
  */
 public class OnScreenDisplay {
     public static final int QUEUE_LENGTH = 5;
     public static final int MESSAGE_ON_SCREEN_MS = 2200;
 
-    protected HashMap<String, String> messages = new HashMap<>();
-    protected LinkedList<String> keys = new LinkedList<>();
-    private OsdEventListener listener;
-    private Date lastMessageArrived = new Date(0);
-    private Timer timer = new Timer();
+    private final AtomicReferenceArray<Message> slots =
+        new AtomicReferenceArray<>(QUEUE_LENGTH);
+    private final AtomicLong sequence = new AtomicLong();
+    /** Time of the earliest wake-up scheduled, Long.MAX_VALUE if none. */
+    private final AtomicLong nextWakeUpMs = new AtomicLong(Long.MAX_VALUE);
+    private final ScheduledExecutorService expiry =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "osd-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final OsdEventListener listener;
+
+    private static class Message {
+        /** Null for messages not to be replaced. */
+        final String key;
+        final String text;
+        final long expiresAtMs;
+        /** Order of arrival. */
+        final long sequence;
+
+        Message(String key, String text, long expiresAtMs, long sequence) {
+            this.key = key;
+            this.text = text;
+            this.expiresAtMs = expiresAtMs;
+            this.sequence = sequence;
+        }
+    }
 
     public OnScreenDisplay(OsdEventListener listener) {
         this.listener = listener;
     }
 
     public void add(String message) {
-        add(UUID.randomUUID().toString(), message);
+        add(null, message);
     }
-    public synchronized void replace(String key, String message) {
-        messages.remove(key);
-        keys.remove(key);
-        this.add(message);
+
+    /**
+     * Same as add(key, message): the message replaces the previous one
+     * with the key.
+     */
+    public void replace(String key, String message) {
+        add(key, message);
     }
-    public synchronized void add(String key, String message) {
-        if (keys.contains(key)) {
-            keys.remove(key);
+
+    /**
+     * Shows a message, replacing the previous message with the same key.
+     * The oldest message is dropped when all slots are used.
+     */
+    public void add(String key, String message) {
+        long now = now();
+        Message added = new Message(
+            key, message, now + MESSAGE_ON_SCREEN_MS, sequence.incrementAndGet());
+        while (!place(added, now)) {
+            // -- An other thread changed the chosen slot, choose again.
         }
-        keys.add(key);
-        messages.put(key, message);
-        if (keys.size() > QUEUE_LENGTH) {
-            String keysRemoving = keys.removeFirst();
-            messages.remove(keysRemoving);
+        scheduleWakeUp(added.expiresAtMs);
+        listener.newMessageArrived(getMessageCount());
+    }
+
+    /**
+     * Copies the messages to show, the oldest first, without allocating
+     * anything.
+     *
+     * @param messages Receives the messages, must hold QUEUE_LENGTH
+     * items.
+     * @return Number of messages copied.
+     */
+    public int snapshot(String[] messages) {
+        long now = now();
+        int count = 0;
+        long last = 0;
+        while (true) {
+            // -- Select the next message by arrival, the slots are few.
+            Message next = null;
+            for (int i = 0; i < QUEUE_LENGTH; i++) {
+                Message message = slots.get(i);
+                if (isShown(message, now) && (message.sequence > last) &&
+                    ((next == null) || (message.sequence < next.sequence)) &&
+                    !isReplaced(message, now)) {
+                    next = message;
+                }
+            }
+            if ((next == null) || (count == messages.length)) {
+                return count;
+            }
+            messages[count++] = next.text;
+            last = next.sequence;
         }
-        lastMessageArrived = new Date();
-        listener.newMessageArrived(messagesToDisplay());
-//        timer.cancel();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                listener.noMessagesToDisplay();
+    }
+
+    /**
+     * @return Number of messages to show.
+     */
+    public int getMessageCount() {
+        long now = now();
+        int count = 0;
+        for (int i = 0; i < QUEUE_LENGTH; i++) {
+            Message message = slots.get(i);
+            if (isShown(message, now) && !isReplaced(message, now)) {
+                count += 1;
             }
-        }, MESSAGE_ON_SCREEN_MS);
+        }
+        return count;
     }
 
-    public List<String> messagesToDisplay() {
-        if(new Date(lastMessageArrived.getTime() + MESSAGE_ON_SCREEN_MS).before(new Date())) {
-            return null;
+    public void dispose() {
+        expiry.shutdownNow();
+    }
+
+    /**
+     * Puts the message to the slot of the message with the same key, or
+     * to a free slot, or to the slot of the oldest message.
+     *
+     * @return False if the slot was changed by an other thread meanwhile.
+     */
+    private boolean place(Message added, long now) {
+        int target = -1;
+        Message replaced = null;
+        for (int i = 0; i < QUEUE_LENGTH; i++) {
+            Message message = slots.get(i);
+            if ((added.key != null) && (message != null) && added.key.equals(message.key)) {
+                target = i;
+                replaced = message;
+                break;
+            }
+            if (!isShown(message, now)) {
+                if ((target < 0) || isShown(replaced, now)) {
+                    target = i;
+                    replaced = message;
+                }
+            } else if ((target < 0) ||
+                (isShown(replaced, now) && (message.sequence < replaced.sequence))) {
+                target = i;
+                replaced = message;
+            }
         }
-        List<String> m = new ArrayList<>(keys.size());
-        for (String k : keys) {
-            m.add(messages.get(k));
+        return slots.compareAndSet(target, replaced, added);
+    }
+
+    /**
+     * Two threads adding the same key at once might both take a slot, then
+     * only the later message is shown.
+     */
+    private boolean isReplaced(Message message, long now) {
+        if (message.key == null) {
+            return false;
+        }
+        for (int i = 0; i < QUEUE_LENGTH; i++) {
+            Message other = slots.get(i);
+            if (isShown(other, now) && (other.sequence > message.sequence) &&
+                message.key.equals(other.key)) {
+                return true;
+            }
         }
-        return m;
+        return false;
     }
 
-    public void dispose() {
-        timer.cancel();
+    private static boolean isShown(Message message, long now) {
+        return (message != null) && (message.expiresAtMs > now);
     }
 
-    public interface OsdEventListener {
-        public void newMessageArrived(List<String> messages);
-        public void noMessagesToDisplay();
+    /**
+     * Makes sure a wake-up is scheduled at the time given, or earlier.
+     * Messages expire in the order they arrive, so this rarely schedules
+     * anything.
+     */
+    private void scheduleWakeUp(long atMs) {
+        long scheduled;
+        while (atMs < (scheduled = nextWakeUpMs.get())) {
+            if (nextWakeUpMs.compareAndSet(scheduled, atMs)) {
+                try {
+                    expiry.schedule(this::expire, atMs - now(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // -- Disposed.
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the expired messages, and schedules the next wake-up.
+     */
+    private void expire() {
+        nextWakeUpMs.set(Long.MAX_VALUE);
+        long now = now();
+        long next = Long.MAX_VALUE;
+        boolean expired = false;
+        for (int i = 0; i < QUEUE_LENGTH; i++) {
+            Message message = slots.get(i);
+            if (message == null) {
+                continue;
+            }
+            if (message.expiresAtMs <= now) {
+                expired |= slots.compareAndSet(i, message, null);
+            } else {
+                next = Math.min(next, message.expiresAtMs);
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleWakeUp(next);
+        }
+        if (expired) {
+            listener.messagesExpired(getMessageCount());
+        }
     }
 
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public interface OsdEventListener {
+        /**
+         * @param messageCount Number of messages to show.
+         */
+        public void newMessageArrived(int messageCount);
 
+        /**
+         * @param messageCount Number of messages still to show.
+         */
+        public void messagesExpired(int messageCount);
+    }
 }
@@ -0,0 +1,205 @@
+package com.prampec.rivetcam;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Blends the frames preceding the live view into a single background
+ * image. The background is composed when the shown frames change, e.g.
+ * after a capture, so each live frame only needs to be blended over it
+ * once, whatever the depth of the onion skin is.
+ * <p>
+ * Newer frames are stronger, each older frame has the weight of the
+ * following one multiplied by the decay.
+ */
+public class OnionSkin
+{
+    public enum Mode
+    {
+        /** Plain blend of the frames. */
+        NORMAL,
+        /** Older frames are tinted more, to tell them apart. */
+        TINT,
+        /** Changes between consecutive frames over the newest one, to
+         * show the path of the motion. */
+        DIFFERENCE,
+    }
+
+    /** Tint added before each newer frame is blended. */
+    private static final Color TINT_COLOR = new Color(255, 64, 0);
+    private static final float TINT_ALPHA = 0.15f;
+
+    private final float decay;
+    private final Mode mode;
+
+    private List<File> composedLayers = Collections.emptyList();
+    private Dimension composedFor = null;
+    private BufferedImage background = null;
+
+    /**
+     * @param decay Weight of a frame relative to the following one
+     * (0..1).
+     */
+    public OnionSkin(float decay, Mode mode)
+    {
+        this.decay = decay;
+        this.mode = mode;
+    }
+
+    /**
+     * Returns the background blended of the layers, composing it again if
+     * the layers or the container changed.
+     *
+     * @param layers Frames of the layers, the oldest first.
+     * @param scaledLayer Provides the image of a layer by its position in
+     * layers, scaled to the container width.
+     * @return The background, or null if there are no layers.
+     */
+    public synchronized BufferedImage getBackground(
+        List<File> layers, Dimension container, GraphicsConfiguration gc,
+        IntFunction<BufferedImage> scaledLayer)
+    {
+        if (layers.isEmpty())
+        {
+            return null;
+        }
+        if (layers.equals(composedLayers) && container.equals(composedFor))
+        {
+            return background;
+        }
+        List<BufferedImage> images = new ArrayList<>(layers.size());
+        for (int i = 0; i < layers.size(); i++)
+        {
+            BufferedImage image = scaledLayer.apply(i);
+            if (image == null)
+            {
+                // -- Not available yet, compose again on the next paint.
+                return background;
+            }
+            images.add(image);
+        }
+        BufferedImage newest = images.get(images.size() - 1);
+        if ((background == null) ||
+            (background.getWidth() != newest.getWidth()) ||
+            (background.getHeight() != newest.getHeight()))
+        {
+            background = gc != null ?
+                gc.createCompatibleImage(
+                    newest.getWidth(), newest.getHeight(), Transparency.OPAQUE) :
+                new BufferedImage(
+                    newest.getWidth(), newest.getHeight(), BufferedImage.TYPE_INT_RGB);
+        }
+        if (mode == Mode.DIFFERENCE)
+        {
+            composeDifference(images);
+        }
+        else
+        {
+            compose(images);
+        }
+        composedLayers = new ArrayList<>(layers);
+        composedFor = new Dimension(container);
+        return background;
+    }
+
+    /**
+     * Forces composing the background again, e.g. when a frame file is
+     * written again with the same name.
+     */
+    public synchronized void invalidate()
+    {
+        composedLayers = Collections.emptyList();
+    }
+
+    /**
+     * Draws the layers oldest first, each with the alpha that gives it its
+     * weight among the layers drawn so far.
+     */
+    private void compose(List<BufferedImage> images)
+    {
+        int width = background.getWidth();
+        int height = background.getHeight();
+        Graphics2D g = background.createGraphics();
+        float drawnWeight = 0;
+        for (int i = 0; i < images.size(); i++)
+        {
+            float weight = (float) Math.pow(decay, images.size() - 1 - i);
+            drawnWeight += weight;
+            if ((i > 0) && (mode == Mode.TINT))
+            {
+                g.setComposite(AlphaComposite.getInstance(
+                    AlphaComposite.SRC_OVER, TINT_ALPHA));
+                g.setColor(TINT_COLOR);
+                g.fillRect(0, 0, width, height);
+            }
+            g.setComposite(AlphaComposite.getInstance(
+                AlphaComposite.SRC_OVER, weight / drawnWeight));
+            g.drawImage(images.get(i), 0, 0, width, height, null);
+        }
+        g.dispose();
+    }
+
+    /**
+     * Dims the newest layer and adds the weighted differences of the
+     * consecutive layers.
+     */
+    private void composeDifference(List<BufferedImage> images)
+    {
+        int width = background.getWidth();
+        int height = background.getHeight();
+        int[] result = getPixels(images.get(images.size() - 1), width, height);
+        int[] sum = new int[width * height * 3];
+        for (int p = 0; p < result.length; p++)
+        {
+            sum[3 * p] = ((result[p] >> 16) & 0xFF) / 2;
+            sum[3 * p + 1] = ((result[p] >> 8) & 0xFF) / 2;
+            sum[3 * p + 2] = (result[p] & 0xFF) / 2;
+        }
+        int[] newer = result;
+        for (int i = images.size() - 2; i >= 0; i--)
+        {
+            int[] older = getPixels(images.get(i), width, height);
+            int weight = (int) (256 * Math.pow(decay, images.size() - 2 - i));
+            for (int p = 0; p < older.length; p++)
+            {
+                int a = newer[p];
+                int b = older[p];
+                sum[3 * p] += weight * Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF)) >> 8;
+                sum[3 * p + 1] += weight * Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)) >> 8;
+                sum[3 * p + 2] += weight * Math.abs((a & 0xFF) - (b & 0xFF)) >> 8;
+            }
+            newer = older;
+        }
+        for (int p = 0; p < result.length; p++)
+        {
+            result[p] = (Math.min(255, sum[3 * p]) << 16) |
+                (Math.min(255, sum[3 * p + 1]) << 8) |
+                Math.min(255, sum[3 * p + 2]);
+        }
+        background.setRGB(0, 0, width, height, result, 0, width);
+    }
+
+    private static int[] getPixels(BufferedImage image, int width, int height)
+    {
+        if ((image.getWidth() != width) || (image.getHeight() != height))
+        {
+            BufferedImage resized =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = resized.createGraphics();
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            image = resized;
+        }
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+}
@@ -0,0 +1,170 @@
+package com.prampec.rivetcam;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The on screen messages and the key info panel rendered into a
+ * translucent image. The text is only rasterized when it changes, painting
+ * the overlay is a single image copy.
+ */
+public class OsdOverlay
+{
+    private static final Color MESSAGE_COLOR = Color.magenta;
+    private static final Color KEY_INFO_COLOR = new Color(130, 130, 255);
+
+    private final Font font;
+    private final int fontSize;
+    /** Rows of the key info panel, a row has a left and a right column. */
+    private final List<String[]> keyInfoRows;
+
+    private final String[] shownMessages = new String[OnScreenDisplay.QUEUE_LENGTH];
+    private int shownCount = 0;
+    private boolean shownKeyInfo = false;
+    private int shownWidth = 0;
+    private boolean rendered = false;
+    private BufferedImage image = null;
+    /** Region covered by the overlay painted last. */
+    private Rectangle bounds = new Rectangle();
+
+    /**
+     * @param keyInfoRows Rows of the key info panel, a row is a pair of a
+     * left and a right column text, the right one can be empty.
+     */
+    public OsdOverlay(int fontSize, List<String[]> keyInfoRows)
+    {
+        this.fontSize = fontSize;
+        this.font = new Font("Helvetia", Font.PLAIN, fontSize);
+        this.keyInfoRows = new ArrayList<>(keyInfoRows);
+    }
+
+    /**
+     * Paints the overlay, rendering it again if its content changed.
+     *
+     * @param messages Messages to show, the first count items are used.
+     */
+    public synchronized void paint(
+        Graphics g, String[] messages, int count, boolean keyInfo, int width,
+        GraphicsConfiguration gc)
+    {
+        if (!rendered || !isShown(messages, count) ||
+            (keyInfo != shownKeyInfo) || (width != shownWidth))
+        {
+            System.arraycopy(messages, 0, shownMessages, 0, count);
+            shownCount = count;
+            shownKeyInfo = keyInfo;
+            shownWidth = width;
+            render(gc);
+            rendered = true;
+        }
+        if (image != null)
+        {
+            g.drawImage(image, 0, 0, null);
+        }
+    }
+
+    private boolean isShown(String[] messages, int count)
+    {
+        if (count != shownCount)
+        {
+            return false;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            if (!messages[i].equals(shownMessages[i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param messageCount Number of messages about to be shown.
+     * @return Region to repaint for the overlay to change: the region of
+     * the previous overlay, and the one the new overlay will cover.
+     */
+    public synchronized Rectangle getDirtyRegion(
+        int messageCount, boolean keyInfo, int width)
+    {
+        Rectangle region = new Rectangle(bounds);
+        region.add(getRegion(getLineCount(messageCount, keyInfo), width));
+        return region;
+    }
+
+    private int getLineCount(int messageCount, boolean keyInfo)
+    {
+        // -- Messages and the key info panel start at the same line.
+        return Math.max(messageCount, keyInfo ? keyInfoRows.size() : 0);
+    }
+
+    private Rectangle getRegion(int lineCount, int width)
+    {
+        if (lineCount == 0)
+        {
+            return new Rectangle();
+        }
+        // -- Last baseline, plus descent and shadow.
+        int height = 2 * fontSize + (lineCount - 1) * lineHeight() + fontSize;
+        return new Rectangle(0, 0, width, height);
+    }
+
+    private int lineHeight()
+    {
+        return fontSize + fontSize / 2;
+    }
+
+    private void render(GraphicsConfiguration gc)
+    {
+        Rectangle region = getRegion(
+            getLineCount(shownCount, shownKeyInfo), shownWidth);
+        bounds = region;
+        if (region.isEmpty())
+        {
+            image = null;
+            return;
+        }
+        image = gc != null ?
+            gc.createCompatibleImage(region.width, region.height, Transparency.TRANSLUCENT) :
+            new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setFont(font);
+        int y = 2 * fontSize;
+        for (int i = 0; i < shownCount; i++)
+        {
+            drawText(g, y, shownMessages[i], MESSAGE_COLOR, 0);
+            y += lineHeight();
+        }
+        if (shownKeyInfo)
+        {
+            y = 2 * fontSize;
+            for (String[] row : keyInfoRows)
+            {
+                drawText(g, y, row[0], KEY_INFO_COLOR, 0);
+                if (row.length > 1)
+                {
+                    drawText(g, y, row[1], KEY_INFO_COLOR, shownWidth / 2);
+                }
+                y += lineHeight();
+            }
+        }
+        g.dispose();
+    }
+
+    private void drawText(
+        Graphics g, int y, String message, Color textColor, int xOffset)
+    {
+        g.setColor(Color.black);
+        g.drawString(message, fontSize + 2 + xOffset, y + 2);
+        g.setColor(textColor);
+        g.drawString(message, fontSize + xOffset, y);
+    }
+}
@@ -86,4 +86,12 @@ public class PluginManager
             plugin.batchFinished(workingDirectory);
         }
     }
+
+    public void cancelBackgroundWork()
+    {
+        for (RivetCamPlugin plugin : plugins)
+        {
+            plugin.cancelBackgroundWork();
+        }
+    }
 }
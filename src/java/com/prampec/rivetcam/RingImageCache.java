@@ -0,0 +1,249 @@
+package com.prampec.rivetcam;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * Thread safe cache of the last captured images, kept in a ring buffer
+ * for constant time access by index. Besides the number of images, the
+ * memory held by the images is limited as well: when the budget is
+ * exceeded, the oldest images release their data, and are read from disk
+ * again when requested.
+ */
+public class RingImageCache implements ImageCache
+{
+    private final StillImage[] ring;
+    private final long[] accountedBytes;
+    private final long maxBytes;
+    private int head = 0;
+    private int size = 0;
+    private long retainedBytes = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param capacity Maximal number of images, at least one is kept.
+     * @param maxBytes Memory budget of the images in bytes.
+     */
+    public RingImageCache(int capacity, long maxBytes)
+    {
+        this.ring = new StillImage[Math.max(1, capacity)];
+        this.accountedBytes = new long[ring.length];
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the newest image, dropping the oldest one if the cache is full.
+     */
+    @Override
+    public synchronized void add(StillImage image)
+    {
+        if (size == ring.length)
+        {
+            unaccount(head);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size -= 1;
+            evictionCount += 1;
+        }
+        int slot = slot(size);
+        ring[slot] = image;
+        size += 1;
+        account(slot);
+        enforceBudget(slot);
+    }
+
+    @Override
+    public synchronized boolean addOldest(StillImage image)
+    {
+        if ((size == ring.length) || (retainedBytes > maxBytes))
+        {
+            return false;
+        }
+        head = (head - 1 + ring.length) % ring.length;
+        ring[head] = image;
+        size += 1;
+        account(head);
+        return retainedBytes <= maxBytes;
+    }
+
+    /**
+     * @param index 0 is the oldest image, size() - 1 is the newest one.
+     */
+    public synchronized StillImage get(int index)
+    {
+        checkIndex(index);
+        return ring[slot(index)];
+    }
+
+    @Override
+    public synchronized File getFile(int index)
+    {
+        return get(index).getFile();
+    }
+
+    /**
+     * Returns the decoded image, reading it from disk if it was evicted
+     * from memory.
+     *
+     * @param index 0 is the oldest image, size() - 1 is the newest one.
+     */
+    @Override
+    public BufferedImage getImage(int index)
+    {
+        StillImage stillImage;
+        synchronized (this)
+        {
+            stillImage = get(index);
+            if (stillImage.isDecoded())
+            {
+                hitCount += 1;
+            }
+            else
+            {
+                missCount += 1;
+            }
+        }
+
+        // -- Decoding might take a while, do not block others meanwhile.
+        BufferedImage image = stillImage.getImage();
+
+        synchronized (this)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                int slot = slot(i);
+                if (ring[slot] == stillImage)
+                {
+                    account(slot);
+                    enforceBudget(slot);
+                    break;
+                }
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public synchronized void removeLast()
+    {
+        if (size > 0)
+        {
+            int slot = slot(size - 1);
+            unaccount(slot);
+            ring[slot] = null;
+            size -= 1;
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(File file)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (ring[slot(i)].getFile().equals(file))
+            {
+                unaccount(slot(i));
+                for (int j = i; j < size - 1; j++)
+                {
+                    ring[slot(j)] = ring[slot(j + 1)];
+                    accountedBytes[slot(j)] = accountedBytes[slot(j + 1)];
+                }
+                ring[slot(size - 1)] = null;
+                accountedBytes[slot(size - 1)] = 0;
+                size -= 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            int slot = slot(i);
+            unaccount(slot);
+            ring[slot] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+
+    @Override
+    public synchronized String getStatistics()
+    {
+        return "Image cache size: " + size + "/" + ring.length +
+            ", memory: " + (retainedBytes / 1024) + "/" +
+            (maxBytes / 1024) + " kB" +
+            ", hits: " + hitCount +
+            ", misses: " + missCount +
+            ", evictions: " + evictionCount;
+    }
+
+    private int slot(int index)
+    {
+        return (head + index) % ring.length;
+    }
+
+    private void checkIndex(int index)
+    {
+        if ((index < 0) || (index >= size))
+        {
+            throw new IndexOutOfBoundsException(
+                "Index " + index + " of cache with size " + size);
+        }
+    }
+
+    private void account(int slot)
+    {
+        retainedBytes -= accountedBytes[slot];
+        accountedBytes[slot] = ring[slot].getRetainedBytes();
+        retainedBytes += accountedBytes[slot];
+    }
+
+    private void unaccount(int slot)
+    {
+        retainedBytes -= accountedBytes[slot];
+        accountedBytes[slot] = 0;
+    }
+
+    /**
+     * Releases memory of the oldest images until the budget is met.
+     *
+     * @param protectedSlot Slot of the image just used, it is kept.
+     */
+    private void enforceBudget(int protectedSlot)
+    {
+        for (int i = 0; (i < size) && (retainedBytes > maxBytes); i++)
+        {
+            int slot = slot(i);
+            if ((slot != protectedSlot) && ring[slot].release())
+            {
+                account(slot);
+                evictionCount += 1;
+            }
+        }
+    }
+}
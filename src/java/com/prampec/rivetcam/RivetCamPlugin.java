@@ -10,4 +10,12 @@ public interface RivetCamPlugin
     void shutdown();
 
     void batchFinished(File workingDirectory);
+
+    /**
+     * Asked by the user to stop work running in the background, e.g. a
+     * long conversion.
+     */
+    default void cancelBackgroundWork()
+    {
+    }
 }
@@ -0,0 +1,294 @@
+package com.prampec.rivetcam;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Exports the frames of a batch as a sequence of downscaled JPEG files,
+ * e.g. for reviewing. Frames are processed in parallel on a fork-join
+ * pool. Frames are decoded with subsampling to about the target size, and
+ * readers and writers are reused between frames.
+ */
+public class SequenceExporter
+{
+    private static final Logger logger =
+        LogManager.getLogger(SequenceExporter.class);
+
+    /** Frames processed by a task without splitting it further. */
+    private static final int FRAMES_PER_TASK = 4;
+    /** Name of the exported frame files by their index. */
+    private static final String FILE_NAME_FORMAT = "img-%04d.jpg";
+
+    private final Dimension maxSize;
+    private final float quality;
+    private final ForkJoinPool pool;
+    private final Queue<ImageReader> readers = new ConcurrentLinkedQueue<>();
+    private final Queue<ImageWriter> writers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param maxSize Frames are scaled down to fit into this size, keeping
+     * their aspect ratio.
+     * @param quality JPEG quality (0..100).
+     * @param parallelism Number of frames processed at the same time.
+     * @param lowPriority Run workers at low priority, e.g. while capturing.
+     */
+    public SequenceExporter(
+        Dimension maxSize, int quality, int parallelism, boolean lowPriority)
+    {
+        this.maxSize = maxSize;
+        this.quality = quality / 100f;
+        pool = new ForkJoinPool(
+            parallelism,
+            p ->
+            {
+                ForkJoinWorkerThread thread =
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("sequence-export-" + thread.getPoolIndex());
+                if (lowPriority)
+                {
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                }
+                return thread;
+            },
+            null, false);
+    }
+
+    /**
+     * Exports the frames of a batch in their order, numbered from 0.
+     *
+     * @return Number of frames exported.
+     */
+    public int export(File batchDirectory, File outputDirectory)
+        throws IOException
+    {
+        List<File> frames = listFrames(batchDirectory);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+        {
+            throw new IOException(
+                "Cannot create output directory " + outputDirectory);
+        }
+        deleteStaleFrames(outputDirectory, frames.size());
+        long start = System.currentTimeMillis();
+        AtomicInteger failed = new AtomicInteger();
+        pool.invoke(new ExportTask(frames, 0, frames.size(), outputDirectory, failed));
+        logger.info("Exported " + (frames.size() - failed.get()) + " frames of " +
+            batchDirectory + " to " + outputDirectory + " in " +
+            (System.currentTimeMillis() - start) + " ms.");
+        if (failed.get() > 0)
+        {
+            throw new IOException(failed.get() + " frames could not be exported.");
+        }
+        return frames.size();
+    }
+
+    /**
+     * Removes frames of an earlier, longer export to the same directory.
+     */
+    private static void deleteStaleFrames(File outputDirectory, int frameCount)
+        throws IOException
+    {
+        File[] stale = outputDirectory.listFiles((dir, name) ->
+            name.matches("img-\\d{1,9}\\.jpg") &&
+            (Integer.parseInt(name.substring(4, name.length() - 4)) >= frameCount));
+        if (stale == null)
+        {
+            return;
+        }
+        for (File file : stale)
+        {
+            Files.delete(file.toPath());
+        }
+    }
+
+    public void shutdown()
+    {
+        pool.shutdownNow();
+        for (ImageReader reader : readers)
+        {
+            reader.dispose();
+        }
+        for (ImageWriter writer : writers)
+        {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * @return Frames in the order of the manifest, or by their names for
+     * batches without one.
+     */
+    private static List<File> listFrames(File batchDirectory)
+    {
+        List<File> frames = new ArrayList<>();
+        FrameManifest manifest = FrameManifest.load(batchDirectory);
+        if (manifest.exists())
+        {
+            for (FrameManifest.Entry entry : manifest.getEntries())
+            {
+                frames.add(new File(batchDirectory, entry.fileName));
+            }
+        }
+        else
+        {
+            File[] files = batchDirectory.listFiles(
+                (dir, name) -> name.endsWith(".jpg"));
+            if (files != null)
+            {
+                Arrays.sort(files);
+                frames.addAll(Arrays.asList(files));
+            }
+        }
+        return frames;
+    }
+
+    private void exportFrame(File frame, File outFile) throws IOException
+    {
+        BufferedImage image = scale(read(frame));
+        ImageWriter writer = writers.poll();
+        if (writer == null)
+        {
+            writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        }
+        // -- The stream would overwrite an existing file without truncating
+        //    it, leaving the end of a larger image.
+        Files.deleteIfExists(outFile.toPath());
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(outFile))
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.reset();
+            writers.add(writer);
+        }
+    }
+
+    /**
+     * Decodes a frame, skipping pixels not needed for the target size.
+     */
+    private BufferedImage read(File frame) throws IOException
+    {
+        ImageReader reader = readers.poll();
+        if (reader == null)
+        {
+            reader = ImageIO.getImageReadersByFormatName("jpg").next();
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(frame))
+        {
+            if (in == null)
+            {
+                throw new IOException("Cannot open " + frame);
+            }
+            reader.setInput(in, true, true);
+            int subsampling = Math.max(1, Math.min(
+                reader.getWidth(0) / maxSize.width,
+                reader.getHeight(0) / maxSize.height));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        }
+        finally
+        {
+            reader.reset();
+            readers.add(reader);
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image)
+    {
+        double factor = Math.min(
+            maxSize.getWidth() / image.getWidth(),
+            maxSize.getHeight() / image.getHeight());
+        if (factor >= 1)
+        {
+            return image;
+        }
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        BufferedImage scaled =
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    /** Never serialized, tasks only live within an export. */
+    @SuppressWarnings("serial")
+    private class ExportTask extends RecursiveAction
+    {
+        private final List<File> frames;
+        private final int from;
+        private final int to;
+        private final File outputDirectory;
+        private final AtomicInteger failed;
+
+        ExportTask(List<File> frames, int from, int to,
+            File outputDirectory, AtomicInteger failed)
+        {
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+            this.outputDirectory = outputDirectory;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > FRAMES_PER_TASK)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                    new ExportTask(frames, from, middle, outputDirectory, failed),
+                    new ExportTask(frames, middle, to, outputDirectory, failed));
+                return;
+            }
+            for (int i = from; i < to; i++)
+            {
+                File outFile = new File(
+                    outputDirectory, String.format(FILE_NAME_FORMAT, i));
+                try
+                {
+                    exportFrame(frames.get(i), outFile);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    logger.error("Cannot export " + frames.get(i), e);
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.prampec.rivetcam;
+
+import java.io.File;
+
+/**
+ * Receives notifications about the progress of snapshots. Methods are
+ * called from background threads, except for frameRemoved().
+ */
+public interface SnapshotListener
+{
+    /**
+     * The frame was received from the camera and queued for writing.
+     *
+     * @param captureLatencyMs Time elapsed since the snapshot was requested.
+     */
+    default void snapshotCaptured(File file, long captureLatencyMs)
+    {
+    }
+
+    /**
+     * The frame was written to its file.
+     */
+    default void snapshotSaved(File file)
+    {
+    }
+
+    /**
+     * The snapshot could not be taken or saved.
+     *
+     * @param file The file of the frame, or null if no frame was captured.
+     */
+    default void snapshotFailed(File file, Throwable cause)
+    {
+    }
+
+    /**
+     * A saved frame was removed from the batch by the user.
+     */
+    default void frameRemoved(File file)
+    {
+    }
+}
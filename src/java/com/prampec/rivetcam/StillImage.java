@@ -0,0 +1,229 @@
+package com.prampec.rivetcam;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A captured still image. The image is either kept as the compressed data
+ * produced by the camera, and decoded only when it is first displayed, or
+ * as an already decoded image.
+ */
+public class StillImage
+{
+    private static final Logger logger =
+        LogManager.getLogger(StillImage.class);
+
+    private final File file;
+    private byte[] jpegData;
+    private BufferedImage image;
+    private volatile boolean persisted = false;
+    private volatile File spillFile;
+    private long captureTime;
+    private int width;
+    private int height;
+    private Map<String, Integer> controls = Collections.emptyMap();
+    private boolean inserted = false;
+    private String insertAfter;
+
+    /**
+     * @param file File where the image is stored.
+     * @param jpegData Compressed image as produced by the camera.
+     */
+    public StillImage(File file, byte[] jpegData)
+    {
+        this.file = file;
+        this.jpegData = jpegData;
+        this.image = null;
+    }
+
+    /**
+     * @param file File where the image is stored.
+     * @param image The decoded image.
+     */
+    public StillImage(File file, BufferedImage image)
+    {
+        this.file = file;
+        this.jpegData = null;
+        this.image = image;
+    }
+
+    /**
+     * Stores information about the circumstances of the capture.
+     *
+     * @param captureTime Capture time in milliseconds since the epoch.
+     * @param controls Camera control values in effect.
+     */
+    public void setCaptureInfo(
+        long captureTime, int width, int height, Map<String, Integer> controls)
+    {
+        this.captureTime = captureTime;
+        this.width = width;
+        this.height = height;
+        this.controls = controls;
+    }
+
+    /**
+     * Requests the image to be placed after an other frame of the batch,
+     * instead of the end of it.
+     *
+     * @param frameName File name of the preceding frame, null for the
+     * first position.
+     */
+    public void setInsertAfter(String frameName)
+    {
+        this.inserted = true;
+        this.insertAfter = frameName;
+    }
+
+    public boolean isInserted()
+    {
+        return inserted;
+    }
+
+    public String getInsertAfter()
+    {
+        return insertAfter;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public long getCaptureTime()
+    {
+        return captureTime;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public Map<String, Integer> getControls()
+    {
+        return controls;
+    }
+
+    /**
+     * @return The compressed image, or null if only the decoded image is
+     * available.
+     */
+    public synchronized byte[] getJpegData()
+    {
+        return jpegData;
+    }
+
+    /**
+     * @return The decoded image, or null if it cannot be decoded.
+     */
+    public synchronized BufferedImage getImage()
+    {
+        if (image == null)
+        {
+            try
+            {
+                if (jpegData != null)
+                {
+                    image = ImageIO.read(new ByteArrayInputStream(jpegData));
+                }
+                else
+                {
+                    // -- The spill file is gone once renamed to the file.
+                    File source = spillFile;
+                    image = ImageIO.read(
+                        (source != null) && !persisted && source.exists() ?
+                        source : file);
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot decode image " + file, e);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Marks that the image was written to its file, so the data in memory
+     * can be released.
+     */
+    public void setPersisted()
+    {
+        persisted = true;
+    }
+
+    /**
+     * Marks that the image was written to a temporary file while waiting
+     * to be written, so the data in memory can be released.
+     */
+    public void setSpilled(File spillFile)
+    {
+        this.spillFile = spillFile;
+    }
+
+    public boolean isPersisted()
+    {
+        return persisted;
+    }
+
+    public synchronized boolean isDecoded()
+    {
+        return image != null;
+    }
+
+    /**
+     * @return Approximate heap memory held by the compressed and decoded
+     * image.
+     */
+    public synchronized long getRetainedBytes()
+    {
+        long bytes = jpegData != null ? jpegData.length : 0;
+        if (image != null)
+        {
+            DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+            bytes += (long) dataBuffer.getSize() * dataBuffer.getNumBanks() *
+                DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the image data held in memory. The image is read from its file
+     * again when next requested. Nothing is released until the image was
+     * persisted or spilled, except for the decoded image when compressed
+     * data is available.
+     *
+     * @return True if any memory was released.
+     */
+    public synchronized boolean release()
+    {
+        boolean stored = persisted || (spillFile != null);
+        boolean released = false;
+        if ((image != null) && (stored || (jpegData != null)))
+        {
+            image = null;
+            released = true;
+        }
+        if ((jpegData != null) && stored)
+        {
+            jpegData = null;
+            released = true;
+        }
+        return released;
+    }
+}
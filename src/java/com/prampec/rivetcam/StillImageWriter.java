@@ -0,0 +1,697 @@
+package com.prampec.rivetcam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.imageio.ImageIO;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes still images to disk on a dedicated thread, so the capture thread
+ * is never blocked by a slow storage.
+ */
+public class StillImageWriter
+{
+    private static final Logger logger =
+        LogManager.getLogger(StillImageWriter.class);
+
+    /**
+     * What to do when an image is submitted while the queue is full.
+     */
+    public enum OverflowPolicy
+    {
+        /** Wait until there is space in the queue. */
+        BLOCK,
+        /** Discard the oldest image waiting in the queue. */
+        DROP_OLDEST,
+        /**
+         * Write further images to temporary files beside their final
+         * files, so they do not have to be held in memory. The writer
+         * renames them in order. Waits when the spill limit is reached as
+         * well.
+         */
+        SPILL,
+    }
+
+    /**
+     * How hard to try that a written image survives a crash or power loss.
+     */
+    public enum Durability
+    {
+        /** Write directly to the final file. */
+        NONE,
+        /**
+         * Write to a temporary file and rename it, so the final file is
+         * never seen partially written. Data might still be lost on power
+         * loss.
+         */
+        ATOMIC,
+        /**
+         * Like ATOMIC, but the files and their directory are synced to the
+         * storage before reporting them written. Images arriving within a
+         * short window are synced together.
+         */
+        GROUP,
+        /** Like GROUP, but every image is synced on its own. */
+        SYNC,
+    }
+
+    /** Suffix of images being written in ATOMIC or stronger modes. */
+    public static final String TEMP_SUFFIX = ".tmp";
+    /** Maximum number of images synced together. */
+    private static final int MAX_GROUP_SIZE = 32;
+
+    private final int capacity;
+    private final int spillLimit;
+    private final OverflowPolicy overflowPolicy;
+    private final Durability durability;
+    private final long groupCommitNs;
+    private final Listener listener;
+    private final Deque<WriteJob> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Thread writerThread;
+    private boolean writing = false;
+    /** Queued jobs holding their image in memory. */
+    private int inMemory = 0;
+    /** Queued jobs spilled to disk, including the one being spilled. */
+    private int spilled = 0;
+    private boolean running = true;
+    private int flushWaiters = 0;
+
+    private long writtenCount = 0;
+    private long droppedCount = 0;
+    private long spilledCount = 0;
+    private long failedCount = 0;
+    private long totalLatencyNs = 0;
+    private long maxLatencyNs = 0;
+    private long syncCount = 0;
+    private boolean directorySyncWarned = false;
+
+    /**
+     * @param spillLimit Maximum number of images spilled to disk, used with
+     * the SPILL overflow policy.
+     * @param groupCommitMs Time to wait for further images to be synced
+     * together, used with GROUP durability.
+     */
+    public StillImageWriter(
+        int capacity, OverflowPolicy overflowPolicy, int spillLimit,
+        Durability durability, long groupCommitMs, Listener listener)
+    {
+        this.capacity = capacity;
+        this.spillLimit = spillLimit;
+        this.overflowPolicy = overflowPolicy;
+        this.durability = durability;
+        this.groupCommitNs = TimeUnit.MILLISECONDS.toNanos(groupCommitMs);
+        this.listener = listener;
+        writerThread = new Thread(this::writeLoop, "still-image-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues an image to be written to its file. Compressed data of the
+     * image is written as is, otherwise the image is encoded as JPEG.
+     * Images must be submitted from a single thread.
+     */
+    public void submit(StillImage image)
+    {
+        WriteJob job = new WriteJob(image, System.nanoTime());
+        WriteJob dropped = null;
+        lock.lock();
+        try
+        {
+            if (!running)
+            {
+                throw new IllegalStateException("Writer is already shut down.");
+            }
+            if (overflowPolicy == OverflowPolicy.SPILL)
+            {
+                while (running && (inMemory >= capacity) &&
+                    (spilled >= spillLimit))
+                {
+                    notFull.awaitUninterruptibly();
+                }
+                if (!running)
+                {
+                    throw new IllegalStateException(
+                        "Writer was shut down while waiting.");
+                }
+                // -- Once spilling, keep on until the spilled images are
+                //    drained, so images are written in order.
+                job.spilled = (inMemory >= capacity) || (spilled > 0);
+                if (job.spilled)
+                {
+                    spilled += 1;
+                }
+            }
+            else if (queue.size() >= capacity)
+            {
+                switch (overflowPolicy)
+                {
+                    case BLOCK:
+                        while (running && (queue.size() >= capacity))
+                        {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (!running)
+                        {
+                            throw new IllegalStateException(
+                                "Writer was shut down while waiting.");
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = dequeue();
+                        droppedCount += 1;
+                        break;
+                }
+            }
+            if (!job.spilled)
+            {
+                enqueue(job);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (job.spilled)
+        {
+            spill(job);
+        }
+        if (dropped != null)
+        {
+            logger.warn("Write queue is full, image " + dropped.file +
+                " was dropped.");
+            listener.imageWriteFailed(
+                dropped.image, new IOException("Dropped from full write queue."));
+        }
+    }
+
+    /**
+     * Writes the image of the job to its staging file outside the lock,
+     * then queues the job. The image may release its data afterwards.
+     */
+    private void spill(WriteJob job)
+    {
+        job.stage(durability);
+        job.close();
+        if (job.failure == null)
+        {
+            job.image.setSpilled(job.stagingFile);
+        }
+        lock.lock();
+        try
+        {
+            spilledCount += 1;
+            enqueue(job);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(WriteJob job)
+    {
+        if (!job.spilled)
+        {
+            inMemory += 1;
+        }
+        queue.addLast(job);
+        notEmpty.signal();
+    }
+
+    private WriteJob dequeue()
+    {
+        WriteJob job = queue.removeFirst();
+        if (job.spilled)
+        {
+            spilled -= 1;
+        }
+        else
+        {
+            inMemory -= 1;
+        }
+        notFull.signal();
+        return job;
+    }
+
+    /**
+     * Blocks until all images submitted so far are written.
+     */
+    public void flush()
+    {
+        lock.lock();
+        try
+        {
+            // -- Do not let the writer wait for a group to fill up.
+            flushWaiters += 1;
+            notEmpty.signal();
+            while (!queue.isEmpty() || writing || (spilled > 0))
+            {
+                drained.awaitUninterruptibly();
+            }
+        }
+        finally
+        {
+            flushWaiters -= 1;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all pending images, then stops the writer thread.
+     *
+     * @param timeoutMs Maximum time to wait for pending images.
+     */
+    public void shutdown(long timeoutMs)
+    {
+        lock.lock();
+        try
+        {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        try
+        {
+            writerThread.join(timeoutMs);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive())
+        {
+            logger.error("Writer did not finish in " + timeoutMs +
+                " ms, some images might be lost.");
+        }
+        logger.info("Still image writer finished. " + getStatistics());
+    }
+
+    public String getStatistics()
+    {
+        lock.lock();
+        try
+        {
+            long avgMs = writtenCount > 0 ?
+                TimeUnit.NANOSECONDS.toMillis(totalLatencyNs / writtenCount) : 0;
+            return "Written: " + writtenCount +
+                ", dropped: " + droppedCount +
+                ", spilled: " + spilledCount +
+                ", failed: " + failedCount +
+                ", queued: " + queue.size() +
+                ", syncs: " + syncCount +
+                ", latency avg/max: " + avgMs + "/" +
+                TimeUnit.NANOSECONDS.toMillis(maxLatencyNs) + " ms";
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop()
+    {
+        List<WriteJob> group = new ArrayList<>();
+        while (true)
+        {
+            lock.lock();
+            try
+            {
+                // -- An image being spilled is not queued yet.
+                while ((running || (spilled > 0)) && queue.isEmpty())
+                {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (queue.isEmpty())
+                {
+                    drained.signalAll();
+                    return; // Shut down and nothing left to write.
+                }
+                group.add(dequeue());
+                writing = true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            long now = 0;
+            try
+            {
+                group.get(0).stage(durability);
+                if (durability == Durability.GROUP)
+                {
+                    collectGroup(group);
+                }
+                commit(group);
+
+                // -- Notify before the jobs count as done, so flush() also
+                //    waits for the bookkeeping of the listener.
+                now = System.nanoTime();
+                for (WriteJob job : group)
+                {
+                    notifyListener(job, now);
+                }
+                try
+                {
+                    listener.imagesWritten();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Error handling written images", e);
+                }
+            }
+            finally
+            {
+                // -- Even if writing failed unexpectedly, so flush() does
+                //    not wait forever.
+                lock.lock();
+                try
+                {
+                    writing = false;
+                    for (WriteJob job : group)
+                    {
+                        if ((job.failure == null) && (now != 0))
+                        {
+                            long latencyNs = now - job.submitTime;
+                            writtenCount += 1;
+                            totalLatencyNs += latencyNs;
+                            maxLatencyNs = Math.max(maxLatencyNs, latencyNs);
+                        }
+                        else
+                        {
+                            failedCount += 1;
+                        }
+                    }
+                    if (queue.isEmpty())
+                    {
+                        drained.signalAll();
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Reports the outcome of a job. An exception of the listener is logged,
+     * it must not stop the writer thread.
+     */
+    private void notifyListener(WriteJob job, long now)
+    {
+        try
+        {
+            if (job.failure == null)
+            {
+                listener.imageWritten(job.image,
+                    TimeUnit.NANOSECONDS.toMillis(now - job.submitTime));
+            }
+            else
+            {
+                listener.imageWriteFailed(job.image, job.failure);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Error handling written image " + job.file, e);
+        }
+    }
+
+    /**
+     * Stages further images arriving within the group commit window.
+     */
+    private void collectGroup(List<WriteJob> group)
+    {
+        long deadline = System.nanoTime() + groupCommitNs;
+        while (group.size() < MAX_GROUP_SIZE)
+        {
+            WriteJob job;
+            lock.lock();
+            try
+            {
+                long remainingNs = deadline - System.nanoTime();
+                while (queue.isEmpty() && running && (flushWaiters == 0) &&
+                    (remainingNs > 0))
+                {
+                    try
+                    {
+                        remainingNs = notEmpty.awaitNanos(remainingNs);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (queue.isEmpty())
+                {
+                    return;
+                }
+                job = dequeue();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            group.add(job);
+            job.stage(durability);
+        }
+    }
+
+    /**
+     * Makes staged images final: syncs, renames to their final names and
+     * syncs the directories as the durability requires.
+     */
+    private void commit(List<WriteJob> group)
+    {
+        boolean sync = (durability == Durability.GROUP) ||
+            (durability == Durability.SYNC);
+        Set<File> directories = new LinkedHashSet<>();
+        for (WriteJob job : group)
+        {
+            if (job.failure != null)
+            {
+                continue;
+            }
+            try
+            {
+                job.finish(sync);
+                directories.add(job.file.getAbsoluteFile().getParentFile());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                job.fail(e);
+            }
+        }
+        if (sync && !directories.isEmpty())
+        {
+            for (File directory : directories)
+            {
+                syncDirectory(directory);
+            }
+            syncCount += 1;
+        }
+        for (WriteJob job : group)
+        {
+            if (job.failure == null)
+            {
+                job.image.setPersisted();
+            }
+            else
+            {
+                logger.error("Error writing " + job.file, job.failure);
+            }
+        }
+    }
+
+    /**
+     * Makes renames in the directory durable.
+     */
+    private void syncDirectory(File directory)
+    {
+        try (FileChannel channel = FileChannel.open(
+            directory.toPath(), StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+            // -- Not every platform can sync a directory.
+            if (!directorySyncWarned)
+            {
+                directorySyncWarned = true;
+                logger.warn("Cannot sync directory " + directory, e);
+            }
+        }
+    }
+
+    private static class WriteJob
+    {
+        final File file;
+        final StillImage image;
+        final long submitTime;
+        /** The image was written to the staging file by submit(). */
+        boolean spilled;
+        File stagingFile;
+        FileChannel channel;
+        Exception failure;
+
+        WriteJob(StillImage image, long submitTime)
+        {
+            this.file = image.getFile();
+            this.image = image;
+            this.submitTime = submitTime;
+        }
+
+        /**
+         * Writes the image to its file, or to a temporary file beside it.
+         * A spilled image is already written, it is only opened again to be
+         * synced.
+         */
+        void stage(Durability durability)
+        {
+            if (failure != null)
+            {
+                return;
+            }
+            try
+            {
+                if (stagingFile != null)
+                {
+                    channel = FileChannel.open(
+                        stagingFile.toPath(), StandardOpenOption.WRITE);
+                    return;
+                }
+                stagingFile = (durability == Durability.NONE) && !spilled ?
+                    file : new File(file.getParentFile(),
+                        "." + file.getName() + TEMP_SUFFIX);
+                channel = FileChannel.open(
+                    stagingFile.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+                byte[] jpegData = image.getJpegData();
+                if (jpegData != null)
+                {
+                    ByteBuffer buffer = ByteBuffer.wrap(jpegData);
+                    while (buffer.hasRemaining())
+                    {
+                        channel.write(buffer);
+                    }
+                }
+                else if (!ImageIO.write(
+                    image.getImage(), "jpg", Channels.newOutputStream(channel)))
+                {
+                    throw new IOException("No JPEG writer available.");
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                fail(e);
+            }
+        }
+
+        void finish(boolean sync) throws IOException
+        {
+            if (sync)
+            {
+                channel.force(false);
+            }
+            channel.close();
+            channel = null;
+            if (stagingFile != file)
+            {
+                Files.move(stagingFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        /**
+         * Closes the staging file of a spilled image until the writer gets
+         * to it.
+         */
+        void close()
+        {
+            if (channel == null)
+            {
+                return;
+            }
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+            }
+            channel = null;
+        }
+
+        void fail(Exception e)
+        {
+            failure = e;
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException ignored)
+                {
+                    // -- Already failed.
+                }
+                channel = null;
+            }
+            if ((stagingFile != null) && (stagingFile != file))
+            {
+                stagingFile.delete();
+            }
+        }
+    }
+
+    public interface Listener
+    {
+        /**
+         * @param latencyMs Time elapsed between submit and the image being
+         * written.
+         */
+        void imageWritten(StillImage image, long latencyMs);
+
+        void imageWriteFailed(StillImage image, Exception e);
+
+        /**
+         * Called after the images committed together were reported, e.g.
+         * to sync the bookkeeping of the whole group at once.
+         */
+        void imagesWritten();
+    }
+}
@@ -0,0 +1,183 @@
+package com.prampec.rivetcam.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.prampec.rivetcam.FrameManifest;
+
+/**
+ * Archive of a batch in a single file. Frames identical to an earlier
+ * frame are stored once, other frames are stored either on their own
+ * (key frames), or as a difference to the preceding frame, whichever is
+ * smaller. Key frames are stored regularly, so any frame can be read
+ * without reading many others.
+ * <p>
+ * Layout of the file:
+ * <pre>
+ * MAGIC, stored data of the entries,
+ * index: entry count, then per entry: name, type, data offset,
+ *     stored length, original length, reference entry, SHA-256 hash
+ * footer: index offset, FOOTER_MAGIC
+ * </pre>
+ * Stored data is deflated.
+ */
+public class BatchArchive
+{
+    private static final Logger logger =
+        LogManager.getLogger(BatchArchive.class);
+
+    static final byte[] MAGIC = {'R', 'C', 'A', 'R', 'C', 'H', '1', '\n'};
+    static final int FOOTER_MAGIC = 0x52434149; // "RCAI"
+    static final int FOOTER_SIZE = 12;
+
+    /** Stored on its own. */
+    static final byte TYPE_KEY = 0;
+    /** Stored as a difference to the reference entry. */
+    static final byte TYPE_DELTA = 1;
+    /** Same content as the reference entry. */
+    static final byte TYPE_DUPLICATE = 2;
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+
+    /**
+     * An entry of the index.
+     */
+    static class Entry
+    {
+        final String name;
+        final byte type;
+        final long offset;
+        final int storedLength;
+        final int length;
+        final int reference;
+        final byte[] hash;
+
+        Entry(String name, byte type, long offset, int storedLength,
+            int length, int reference, byte[] hash)
+        {
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.length = length;
+            this.reference = reference;
+            this.hash = hash;
+        }
+    }
+
+    private BatchArchive()
+    {
+    }
+
+    /**
+     * Stores the frames of a batch in their order, followed by the
+     * manifest.
+     *
+     * @return Number of frames stored.
+     */
+    public static int pack(File batchDirectory, File archive, int keyframeInterval)
+        throws IOException
+    {
+        List<File> files = new ArrayList<>();
+        FrameManifest manifest = FrameManifest.load(batchDirectory);
+        if (manifest.exists())
+        {
+            for (FrameManifest.Entry entry : manifest.getEntries())
+            {
+                files.add(new File(batchDirectory, entry.fileName));
+            }
+        }
+        else
+        {
+            File[] frames = batchDirectory.listFiles(
+                (dir, name) -> name.endsWith(".jpg"));
+            if (frames != null)
+            {
+                Arrays.sort(frames);
+                files.addAll(Arrays.asList(frames));
+            }
+        }
+        int frameCount = files.size();
+        if (manifest.exists())
+        {
+            files.add(manifest.getFile());
+        }
+
+        long start = System.currentTimeMillis();
+        long originalSize = 0;
+        try (BatchArchiveWriter writer =
+            new BatchArchiveWriter(archive, keyframeInterval))
+        {
+            try
+            {
+                for (File file : files)
+                {
+                    byte[] data = Files.readAllBytes(file.toPath());
+                    originalSize += data.length;
+                    writer.add(file.getName(), data);
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // -- Do not leave an archive that looks complete.
+                writer.abort();
+                throw e;
+            }
+        }
+        logger.info("Packed " + frameCount + " frames of " + batchDirectory +
+            " in " + (System.currentTimeMillis() - start) + " ms, " +
+            originalSize / 1024 + " kB to " + archive.length() / 1024 + " kB.");
+        return frameCount;
+    }
+
+    /**
+     * Restores all files of an archive into a directory.
+     *
+     * @return Number of files restored.
+     */
+    public static int unpack(File archive, File outputDirectory)
+        throws IOException
+    {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+        {
+            throw new IOException(
+                "Cannot create output directory " + outputDirectory);
+        }
+        try (BatchArchiveReader reader = new BatchArchiveReader(archive))
+        {
+            // -- Check all names before writing anything.
+            for (int i = 0; i < reader.size(); i++)
+            {
+                if (!isPlainName(reader.getName(i)))
+                {
+                    throw new IOException("Invalid entry name in " + archive +
+                        ": " + reader.getName(i));
+                }
+            }
+            for (int i = 0; i < reader.size(); i++)
+            {
+                Files.write(
+                    new File(outputDirectory, reader.getName(i)).toPath(),
+                    reader.read(i));
+            }
+            return reader.size();
+        }
+    }
+
+    /**
+     * Archives only hold files of a single directory, a name with a path
+     * could write outside the output directory.
+     */
+    private static boolean isPlainName(String name)
+    {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..") &&
+            (name.indexOf('/') < 0) && (name.indexOf('\\') < 0) &&
+            (name.indexOf(':') < 0) && (name.indexOf('\0') < 0);
+    }
+}
@@ -0,0 +1,232 @@
+package com.prampec.rivetcam.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads any entry of a batch archive, reading only the entries it depends
+ * on. The last entry read, and the last one not being a duplicate, are
+ * kept, so reading the entries in order reads every entry only once.
+ *
+ * @see BatchArchive
+ */
+public class BatchArchiveReader implements Closeable
+{
+    private final FileChannel channel;
+    private final BatchArchive.Entry[] entries;
+    private final Inflater inflater = new Inflater();
+    private final MessageDigest digest;
+    private int lastIndex = -1;
+    private byte[] lastData;
+    /** Last stored entry read, deltas following a duplicate refer to it. */
+    private int lastStoredIndex = -1;
+    private byte[] lastStoredData;
+
+    public BatchArchiveReader(File archive) throws IOException
+    {
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        try
+        {
+            entries = readIndex(archive);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int size()
+    {
+        return entries.length;
+    }
+
+    public String getName(int index)
+    {
+        return entries[index].name;
+    }
+
+    /**
+     * @return Index of the entry with the name, -1 if there is no such
+     * entry.
+     */
+    public int indexOf(String name)
+    {
+        for (int i = 0; i < entries.length; i++)
+        {
+            if (entries[i].name.equals(name))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Original content of an entry.
+     */
+    public byte[] read(int index) throws IOException
+    {
+        if (index == lastIndex)
+        {
+            return lastData;
+        }
+        if (index == lastStoredIndex)
+        {
+            return lastStoredData;
+        }
+        BatchArchive.Entry entry = entries[index];
+        byte[] data;
+        switch (entry.type)
+        {
+            case BatchArchive.TYPE_DUPLICATE:
+                // -- The original might be far back, the following delta
+                //    still refers to the stored entry before this one.
+                int storedIndex = lastStoredIndex;
+                byte[] storedData = lastStoredData;
+                data = read(entry.reference);
+                lastStoredIndex = storedIndex;
+                lastStoredData = storedData;
+                break;
+            case BatchArchive.TYPE_KEY:
+                data = inflate(entry);
+                break;
+            case BatchArchive.TYPE_DELTA:
+                byte[] delta = inflate(entry);
+                data = DeltaCodec.decode(read(entry.reference), delta, entry.length);
+                break;
+            default:
+                throw new IOException("Unknown entry type: " + entry.type);
+        }
+        if (!Arrays.equals(digest.digest(data), entry.hash))
+        {
+            throw new IOException("Entry " + entry.name + " is corrupt.");
+        }
+        lastIndex = index;
+        lastData = data;
+        if (entry.type != BatchArchive.TYPE_DUPLICATE)
+        {
+            lastStoredIndex = index;
+            lastStoredData = data;
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        inflater.end();
+        channel.close();
+    }
+
+    /**
+     * @return Inflated stored data of an entry.
+     */
+    private byte[] inflate(BatchArchive.Entry entry) throws IOException
+    {
+        ByteBuffer stored = ByteBuffer.allocate(entry.storedLength);
+        readFully(stored, entry.offset);
+        inflater.reset();
+        inflater.setInput(stored.array());
+        ByteArrayOutputStream data = new ByteArrayOutputStream(entry.length);
+        byte[] buffer = new byte[16 * 1024];
+        try
+        {
+            while (!inflater.finished())
+            {
+                int count = inflater.inflate(buffer);
+                if ((count == 0) && inflater.needsInput())
+                {
+                    throw new IOException("Entry " + entry.name + " is truncated.");
+                }
+                data.write(buffer, 0, count);
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Entry " + entry.name + " is corrupt.", e);
+        }
+        return data.toByteArray();
+    }
+
+    private BatchArchive.Entry[] readIndex(File archive) throws IOException
+    {
+        long size = channel.size();
+        ByteBuffer magic = ByteBuffer.allocate(BatchArchive.MAGIC.length);
+        readFully(magic, 0);
+        ByteBuffer footer = ByteBuffer.allocate(BatchArchive.FOOTER_SIZE);
+        if (size >= BatchArchive.MAGIC.length + BatchArchive.FOOTER_SIZE)
+        {
+            readFully(footer, size - BatchArchive.FOOTER_SIZE);
+        }
+        footer.flip();
+        if (!Arrays.equals(magic.array(), BatchArchive.MAGIC) ||
+            (footer.limit() < BatchArchive.FOOTER_SIZE) ||
+            (footer.getInt(8) != BatchArchive.FOOTER_MAGIC))
+        {
+            throw new IOException(archive + " is not a complete batch archive.");
+        }
+        long indexOffset = footer.getLong(0);
+        ByteBuffer index = ByteBuffer.allocate(
+            (int) (size - BatchArchive.FOOTER_SIZE - indexOffset));
+        readFully(index, indexOffset);
+        try (DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(index.array())))
+        {
+            BatchArchive.Entry[] result = new BatchArchive.Entry[in.readInt()];
+            for (int i = 0; i < result.length; i++)
+            {
+                String name = in.readUTF();
+                byte type = in.readByte();
+                long offset = in.readLong();
+                int storedLength = in.readInt();
+                int length = in.readInt();
+                int reference = in.readInt();
+                byte[] hash = new byte[32];
+                in.readFully(hash);
+                if ((type != BatchArchive.TYPE_KEY) &&
+                    ((reference < 0) || (reference >= i)))
+                {
+                    throw new IOException("Invalid reference in entry " + name);
+                }
+                result[i] = new BatchArchive.Entry(
+                    name, type, offset, storedLength, length, reference, hash);
+            }
+            return result;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        long p = position;
+        while (buffer.hasRemaining())
+        {
+            int count = channel.read(buffer, p);
+            if (count < 0)
+            {
+                throw new IOException("Unexpected end of archive.");
+            }
+            p += count;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.prampec.rivetcam.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a batch archive entry by entry. Only the previous entry is kept
+ * in memory, so batches of any length can be archived. The archive is
+ * written to a temporary file, and only appears under its name once
+ * complete.
+ *
+ * @see BatchArchive
+ */
+public class BatchArchiveWriter implements Closeable
+{
+    private final File archive;
+    private final File tempFile;
+    private final DataOutputStream out;
+    private final int keyframeInterval;
+    private final MessageDigest digest;
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final List<BatchArchive.Entry> entries = new ArrayList<>();
+    /** Entry index by content hash. */
+    private final Map<ByteBuffer, Integer> hashes = new HashMap<>();
+    private long offset;
+    /** Content and index of the last stored (not duplicate) entry. */
+    private byte[] previous;
+    private int previousIndex = -1;
+    private int sinceKeyframe = 0;
+    private boolean failed = false;
+
+    /**
+     * @param keyframeInterval Maximum number of entries stored as a
+     * difference in a row.
+     */
+    public BatchArchiveWriter(File archive, int keyframeInterval)
+        throws IOException
+    {
+        this.archive = archive;
+        this.keyframeInterval = keyframeInterval;
+        tempFile = new File(archive.getAbsoluteFile().getParentFile(),
+            "." + archive.getName() + ".tmp");
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tempFile), 64 * 1024));
+        out.write(BatchArchive.MAGIC);
+        offset = BatchArchive.MAGIC.length;
+    }
+
+    public void add(String name, byte[] data) throws IOException
+    {
+        if (failed)
+        {
+            throw new IllegalStateException("Archive was aborted.");
+        }
+        byte[] hash = digest.digest(data);
+        Integer same = hashes.get(ByteBuffer.wrap(hash));
+        if (same != null)
+        {
+            entries.add(new BatchArchive.Entry(
+                name, BatchArchive.TYPE_DUPLICATE, offset, 0,
+                data.length, same, hash));
+            return;
+        }
+
+        byte type = BatchArchive.TYPE_KEY;
+        byte[] stored = deflate(data);
+        if ((previous != null) && (sinceKeyframe < keyframeInterval))
+        {
+            byte[] delta = deflate(DeltaCodec.encode(previous, data));
+            if (delta.length < stored.length)
+            {
+                type = BatchArchive.TYPE_DELTA;
+                stored = delta;
+            }
+        }
+        sinceKeyframe = type == BatchArchive.TYPE_KEY ? 0 : sinceKeyframe + 1;
+
+        int index = entries.size();
+        entries.add(new BatchArchive.Entry(
+            name, type, offset, stored.length, data.length,
+            type == BatchArchive.TYPE_DELTA ? previousIndex : -1, hash));
+        hashes.put(ByteBuffer.wrap(hash), index);
+        out.write(stored);
+        offset += stored.length;
+        previous = data;
+        previousIndex = index;
+    }
+
+    /**
+     * Marks the archive as failed: close() then discards it instead of
+     * completing it.
+     */
+    public void abort()
+    {
+        failed = true;
+    }
+
+    /**
+     * Writes the index, and closes the archive. An aborted archive is
+     * deleted instead.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (failed)
+        {
+            try
+            {
+                out.close();
+            }
+            finally
+            {
+                deflater.end();
+                tempFile.delete();
+            }
+            return;
+        }
+        try
+        {
+            long indexOffset = offset;
+            out.writeInt(entries.size());
+            for (BatchArchive.Entry entry : entries)
+            {
+                out.writeUTF(entry.name);
+                out.writeByte(entry.type);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.storedLength);
+                out.writeInt(entry.length);
+                out.writeInt(entry.reference);
+                out.write(entry.hash);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(BatchArchive.FOOTER_MAGIC);
+            out.close();
+            Files.move(tempFile.toPath(), archive.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private byte[] deflate(byte[] data)
+    {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[16 * 1024];
+        while (!deflater.finished())
+        {
+            int count = deflater.deflate(buffer);
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
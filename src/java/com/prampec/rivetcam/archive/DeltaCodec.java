@@ -0,0 +1,241 @@
+package com.prampec.rivetcam.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Describes a byte array as a difference to a reference array: a sequence
+ * of ranges copied from the reference, and literal bytes. Matching ranges
+ * are found by hashing fixed size blocks of the reference, so ranges are
+ * found wherever they moved to. The target is scanned with a rolling hash,
+ * moving by a byte costs constant time whatever the block size is.
+ */
+class DeltaCodec
+{
+    private static final int BLOCK = 16;
+    private static final int MULTIPLIER = 31;
+    /** MULTIPLIER to the power of BLOCK - 1, weight of the leaving byte. */
+    private static final int LEAVING_WEIGHT = power(MULTIPLIER, BLOCK - 1);
+    private static final byte OP_COPY = 0;
+    private static final byte OP_INSERT = 1;
+
+    private DeltaCodec()
+    {
+    }
+
+    static byte[] encode(byte[] reference, byte[] target)
+    {
+        BlockTable blocks = new BlockTable(reference.length / BLOCK);
+        for (int pos = 0; pos + BLOCK <= reference.length; pos += BLOCK)
+        {
+            blocks.putIfAbsent(hash(reference, pos), pos);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            int literalStart = 0;
+            int i = 0;
+            int h = target.length >= BLOCK ? hash(target, 0) : 0;
+            while (i + BLOCK <= target.length)
+            {
+                int refPos = blocks.get(h);
+                if ((refPos < 0) || !matches(reference, refPos, target, i))
+                {
+                    if (i + BLOCK < target.length)
+                    {
+                        h = (h - target[i] * LEAVING_WEIGHT) * MULTIPLIER +
+                            target[i + BLOCK];
+                    }
+                    i += 1;
+                    continue;
+                }
+                // -- Grow the match in both directions.
+                int start = i;
+                int refStart = refPos;
+                while ((start > literalStart) && (refStart > 0) &&
+                    (target[start - 1] == reference[refStart - 1]))
+                {
+                    start -= 1;
+                    refStart -= 1;
+                }
+                int end = i + BLOCK;
+                int refEnd = refPos + BLOCK;
+                while ((end < target.length) && (refEnd < reference.length) &&
+                    (target[end] == reference[refEnd]))
+                {
+                    end += 1;
+                    refEnd += 1;
+                }
+                writeInsert(out, target, literalStart, start);
+                out.writeByte(OP_COPY);
+                out.writeInt(refStart);
+                out.writeInt(end - start);
+                i = end;
+                literalStart = end;
+                if (i + BLOCK <= target.length)
+                {
+                    h = hash(target, i);
+                }
+            }
+            writeInsert(out, target, literalStart, target.length);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // -- Cannot happen with a byte array stream.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] decode(byte[] reference, byte[] delta, int length)
+        throws IOException
+    {
+        byte[] target = new byte[length];
+        int pos = 0;
+        try (DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(delta)))
+        {
+            while (in.available() > 0)
+            {
+                byte op = in.readByte();
+                if (op == OP_COPY)
+                {
+                    int from = in.readInt();
+                    int count = in.readInt();
+                    System.arraycopy(reference, from, target, pos, count);
+                    pos += count;
+                }
+                else if (op == OP_INSERT)
+                {
+                    int count = in.readInt();
+                    in.readFully(target, pos, count);
+                    pos += count;
+                }
+                else
+                {
+                    throw new IOException("Invalid delta operation: " + op);
+                }
+            }
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            throw new IOException("Delta does not fit its reference.", e);
+        }
+        if (pos != length)
+        {
+            throw new IOException(
+                "Delta produced " + pos + " bytes instead of " + length);
+        }
+        return target;
+    }
+
+    private static void writeInsert(
+        DataOutputStream out, byte[] target, int from, int to)
+        throws IOException
+    {
+        if (to > from)
+        {
+            out.writeByte(OP_INSERT);
+            out.writeInt(to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static boolean matches(byte[] a, int aPos, byte[] b, int bPos)
+    {
+        for (int k = 0; k < BLOCK; k++)
+        {
+            if (a[aPos + k] != b[bPos + k])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] data, int pos)
+    {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++)
+        {
+            h = MULTIPLIER * h + data[pos + k];
+        }
+        return h;
+    }
+
+    private static int power(int base, int exponent)
+    {
+        int result = 1;
+        for (int k = 0; k < exponent; k++)
+        {
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Positions of the reference blocks by their hashes, in primitive
+     * arrays with open addressing. The first block of a hash is kept.
+     */
+    private static class BlockTable
+    {
+        private final int[] hashes;
+        /** Block position, -1 for an empty slot. */
+        private final int[] positions;
+        private final int mask;
+
+        BlockTable(int blockCount)
+        {
+            int size = Integer.highestOneBit(Math.max(16, blockCount * 2) - 1) << 1;
+            hashes = new int[size];
+            positions = new int[size];
+            Arrays.fill(positions, -1);
+            mask = size - 1;
+        }
+
+        void putIfAbsent(int hash, int position)
+        {
+            int slot = slot(hash);
+            while (positions[slot] >= 0)
+            {
+                if (hashes[slot] == hash)
+                {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            positions[slot] = position;
+        }
+
+        /**
+         * @return Position of the block, -1 if there is none with the hash.
+         */
+        int get(int hash)
+        {
+            int slot = slot(hash);
+            while (positions[slot] >= 0)
+            {
+                if (hashes[slot] == hash)
+                {
+                    return positions[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int slot(int hash)
+        {
+            // -- Spread the bits, similar blocks have similar hashes.
+            return (hash * 0x9E3779B9 >>> 16 ^ hash) & mask;
+        }
+    }
+}
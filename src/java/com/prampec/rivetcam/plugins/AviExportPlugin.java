@@ -0,0 +1,150 @@
+package com.prampec.rivetcam.plugins;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.prampec.rivetcam.AppController;
+import com.prampec.rivetcam.FrameManifest;
+import com.prampec.rivetcam.RivetCamPlugin;
+import com.prampec.util.JpegHelper;
+import com.prampec.util.MjpegAviWriter;
+
+/**
+ * Writes finished batches as Motion JPEG AVI files. Captured JPEG frames
+ * are copied into the file as they are, so no external encoder is needed,
+ * and hardly any CPU is used.
+ */
+public class AviExportPlugin implements RivetCamPlugin
+{
+    private static final Logger logger =
+        LogManager.getLogger(AviExportPlugin.class);
+
+    private final AppController appController;
+    private final int fps;
+    private final int directoryIndexDigits;
+    private final String outputFolder;
+    private final ExecutorService executor =
+        Executors.newSingleThreadExecutor(r ->
+        {
+            Thread thread = new Thread(r, "avi-export");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+    public AviExportPlugin(
+        AppController appController,
+        int playbackFps,
+        int directoryIndexDigits,
+        String outputFolder)
+    {
+        this.appController = appController;
+        this.fps = playbackFps;
+        this.directoryIndexDigits = directoryIndexDigits;
+        this.outputFolder = outputFolder;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+            {
+                logger.warn("AVI export did not finish in time.");
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void batchFinished(File workingDirectory)
+    {
+        executor.execute(() -> export(workingDirectory));
+    }
+
+    private void export(File workingDirectory)
+    {
+        String name = workingDirectory.getName();
+        String number =
+            name.substring(name.length() - directoryIndexDigits);
+        File outFile = new File(outputFolder, "anim-" + number + ".avi");
+        List<File> frames = listFrames(workingDirectory);
+        if (frames.isEmpty())
+        {
+            logger.info("No frames to export in " + workingDirectory);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try
+        {
+            Dimension size = JpegHelper.readDimension(frames.get(0));
+            if (size == null)
+            {
+                throw new IOException(
+                    "No JPEG frame header in " + frames.get(0));
+            }
+            try (MjpegAviWriter writer = new MjpegAviWriter(
+                outFile, size.width, size.height, fps))
+            {
+                for (File frame : frames)
+                {
+                    writer.addFrame(frame);
+                }
+            }
+            String message = "Animation " + outFile.getName() + " was exported.";
+            logger.info(message + " " + frames.size() + " frames, " +
+                outFile.length() / 1024 + " kB in " +
+                (System.currentTimeMillis() - start) + " ms.");
+            appController.getOnScreenDisplay().add(message);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to export " + outFile, e);
+            appController.getOnScreenDisplay().add(
+                "Failed to write " + outFile.getName());
+        }
+    }
+
+    /**
+     * @return Frames in the order of the manifest, or by their names for
+     * batches without one.
+     */
+    private static List<File> listFrames(File workingDirectory)
+    {
+        List<File> frames = new ArrayList<>();
+        FrameManifest manifest = FrameManifest.load(workingDirectory);
+        if (manifest.exists())
+        {
+            for (FrameManifest.Entry entry : manifest.getEntries())
+            {
+                frames.add(new File(workingDirectory, entry.fileName));
+            }
+        }
+        else
+        {
+            File[] files = workingDirectory.listFiles(
+                (dir, fileName) -> fileName.endsWith(".jpg"));
+            if (files != null)
+            {
+                Arrays.sort(files);
+                frames.addAll(Arrays.asList(files));
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,296 @@
+package com.prampec.rivetcam.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs conversion commands in the background on a limited number of
+ * workers, so encoders never take all the cores from the capture. Commands
+ * are started with lowered priority, and their progress is reported from
+ * the output of ffmpeg's -progress option.
+ */
+class ConversionScheduler
+{
+    private static final Logger logger =
+        LogManager.getLogger(ConversionScheduler.class);
+
+    /** Exit code reported for cancelled jobs. */
+    static final int CANCELLED = -2;
+    /** Exit code reported for jobs not able to start. */
+    static final int NOT_STARTED = -1;
+
+    private final ThreadPoolExecutor executor;
+    private final List<String> commandPrefix;
+    private final ProgressListener progressListener;
+    /** Queued and running jobs by their name. */
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong submitCount = new AtomicLong();
+
+    /**
+     * @param niceness Niceness of the started processes, 0 to keep the
+     * priority of the application.
+     */
+    ConversionScheduler(
+        int workers, int niceness, ProgressListener progressListener)
+    {
+        this.progressListener = progressListener;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+            workers, workers, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            r ->
+            {
+                Thread thread = new Thread(
+                    r, "convert-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        if ((niceness > 0) &&
+            !System.getProperty("os.name").startsWith("Windows"))
+        {
+            commandPrefix = Collections.unmodifiableList(
+                Arrays.asList("nice", "-n", String.valueOf(niceness)));
+        }
+        else
+        {
+            commandPrefix = Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return Command to put before commands run outside the scheduler to
+     * lower their priority the same way.
+     */
+    List<String> getCommandPrefix()
+    {
+        return commandPrefix;
+    }
+
+    /**
+     * Queues a command. A job with the same name still queued or running is
+     * cancelled.
+     *
+     * @param totalFrames Number of frames to convert, 0 if unknown.
+     */
+    void submit(
+        String name, File workingDirectory, List<String> command,
+        int totalFrames, ConvertPlugin.Callback callback)
+    {
+        Job job = new Job(name, workingDirectory, command, totalFrames, callback);
+        Job previous = jobs.put(name, job);
+        if (previous != null)
+        {
+            logger.info("Conversion " + name + " is started again.");
+            previous.cancel();
+        }
+        executor.execute(job);
+        logger.info("Conversion " + name + " queued, " +
+            executor.getQueue().size() + " waiting.");
+    }
+
+    /**
+     * @return False if there is no such job.
+     */
+    boolean cancel(String name)
+    {
+        Job job = jobs.get(name);
+        if (job == null)
+        {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+
+    /**
+     * Cancels the job submitted last among the queued and running ones.
+     *
+     * @return Name of the cancelled job, or null if there is no job.
+     */
+    String cancelNewest()
+    {
+        Job newest = null;
+        for (Job job : jobs.values())
+        {
+            if ((newest == null) || (job.sequence > newest.sequence))
+            {
+                newest = job;
+            }
+        }
+        if (newest == null)
+        {
+            return null;
+        }
+        newest.cancel();
+        return newest.name;
+    }
+
+    /**
+     * Drops the queued jobs, and waits for the running ones. Jobs still
+     * running after the timeout are killed.
+     */
+    void shutdown(long timeoutMs)
+    {
+        for (Runnable queued : executor.getQueue())
+        {
+            ((Job) queued).cancel();
+        }
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("Conversions did not finish in " + timeoutMs +
+                    " ms, killing them.");
+                for (Job job : jobs.values())
+                {
+                    job.cancel();
+                }
+                executor.shutdownNow();
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Conversion scheduler is shut down.");
+    }
+
+    private class Job implements Runnable
+    {
+        final String name;
+        final File workingDirectory;
+        final List<String> command;
+        final int totalFrames;
+        final ConvertPlugin.Callback callback;
+        final long sequence = submitCount.incrementAndGet();
+        private volatile boolean cancelled = false;
+        private volatile Process process;
+
+        Job(String name, File workingDirectory, List<String> command,
+            int totalFrames, ConvertPlugin.Callback callback)
+        {
+            this.name = name;
+            this.workingDirectory = workingDirectory;
+            this.command = command;
+            this.totalFrames = totalFrames;
+            this.callback = callback;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+            Process p = process;
+            if (p != null)
+            {
+                p.destroyForcibly();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            int exitCode;
+            try
+            {
+                exitCode = cancelled ? CANCELLED : execute();
+            }
+            finally
+            {
+                jobs.remove(name, this);
+            }
+            callback.perform(exitCode);
+        }
+
+        private int execute()
+        {
+            List<String> fullCommand = new ArrayList<>(commandPrefix);
+            fullCommand.addAll(command);
+            logger.info("Starting command in " + workingDirectory + fullCommand);
+            ProcessBuilder pb = new ProcessBuilder(fullCommand);
+            pb.directory(workingDirectory);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            long start = System.currentTimeMillis();
+            try
+            {
+                process = pb.start();
+                if (cancelled)
+                {
+                    process.destroyForcibly();
+                }
+                readProgress(process);
+                int exitCode = process.waitFor();
+                logger.info("Command exit code = " + exitCode + " after " +
+                    (System.currentTimeMillis() - start) + " ms.");
+                return cancelled ? CANCELLED : exitCode;
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot run " + fullCommand, e);
+                return cancelled ? CANCELLED : NOT_STARTED;
+            }
+            catch (InterruptedException e)
+            {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                return CANCELLED;
+            }
+        }
+
+        /**
+         * Reads key=value progress lines until the process ends.
+         */
+        private void readProgress(Process process) throws IOException
+        {
+            try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(
+                    process.getInputStream(), StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.startsWith("frame="))
+                    {
+                        try
+                        {
+                            int frame = Integer.parseInt(
+                                line.substring("frame=".length()).trim());
+                            progressListener.jobProgress(name, frame, totalFrames);
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            // -- Not a progress line.
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    interface ProgressListener
+    {
+        /**
+         * @param totalFrames 0 if unknown.
+         */
+        void jobProgress(String name, int frame, int totalFrames);
+    }
+}
@@ -3,13 +3,17 @@ package com.prampec.rivetcam.plugins;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.prampec.rivetcam.AppController;
+import com.prampec.rivetcam.FrameManifest;
 import com.prampec.rivetcam.RivetCamPlugin;
+import com.prampec.rivetcam.SnapshotListener;
 
 public class ConvertPlugin
     implements RivetCamPlugin
@@ -21,26 +25,111 @@ public class ConvertPlugin
     private int fps;
     private int directoryIndexDigits;
     private String outputFolder;
+    private IncrementalEncoder incrementalEncoder;
+    private final ConversionScheduler scheduler;
+    private final long shutdownTimeoutMs;
+    /** Last progress shown by job name, to avoid flooding the OSD. */
+    private final Map<String, Integer> shownProgress = new ConcurrentHashMap<>();
 
+    private static final String FRAME_LIST_NAME = "frames.ffconcat";
+
+    /**
+     * @param workers Number of conversions running at the same time.
+     * @param niceness Niceness of the encoder processes.
+     * @param shutdownTimeoutMs Time to wait for running conversions on
+     * shutdown.
+     */
     public ConvertPlugin(
         AppController appController,
         int playbackFps,
         int directoryIndexDigits,
-        String outputFolder)
+        String outputFolder,
+        int workers,
+        int niceness,
+        long shutdownTimeoutMs)
     {
         this.appController = appController;
         this.fps = playbackFps;
         this.directoryIndexDigits = directoryIndexDigits;
         this.outputFolder = outputFolder;
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        this.scheduler = new ConversionScheduler(
+            workers, niceness, this::onConversionProgress);
+    }
+
+    /**
+     * Encodes frames already while they are captured.
+     *
+     * @param segmentFrames Number of frames encoded by one process.
+     * @param encoderOptions ffmpeg output options of the segments.
+     */
+    public void startIncremental(int segmentFrames, String encoderOptions)
+    {
+        IncrementalEncoder encoder =
+            new IncrementalEncoder(fps, segmentFrames, encoderOptions,
+                scheduler.getCommandPrefix());
+        incrementalEncoder = encoder;
+        appController.addSnapshotListener(new SnapshotListener()
+        {
+            @Override
+            public void snapshotSaved(File file)
+            {
+                encoder.frameSaved(file);
+            }
+
+            @Override
+            public void frameRemoved(File file)
+            {
+                encoder.frameRemoved(file);
+            }
+        });
     }
 
     public void shutdown()
     {
-        stopBackgroundProcesses();
+        if (incrementalEncoder != null)
+        {
+            incrementalEncoder.shutdown();
+        }
+        scheduler.shutdown(shutdownTimeoutMs);
+    }
+
+    /**
+     * Stops the conversion of a batch, queued or running.
+     *
+     * @return False if the batch is not being converted.
+     */
+    public boolean cancelConversion(File workingDirectory)
+    {
+        return scheduler.cancel(getOutFile(workingDirectory).getName());
+    }
+
+    /**
+     * Stops the conversion started last, queued or running.
+     */
+    @Override
+    public void cancelBackgroundWork()
+    {
+        String name = scheduler.cancelNewest();
+        if (name == null)
+        {
+            appController.getOnScreenDisplay().add("No conversion to cancel.");
+        }
+        else
+        {
+            logger.info("Conversion " + name + " cancelled by the user.");
+        }
     }
 
     public void batchFinished(File workingDirectory)
     {
+        if (incrementalEncoder != null)
+        {
+            File outFile = getOutFile(workingDirectory);
+            incrementalEncoder.finish(
+                workingDirectory, outFile, createCallback(outFile));
+            return;
+        }
         createAnimation(
             workingDirectory);
     }
@@ -54,136 +143,124 @@ public class ConvertPlugin
 
     protected void onConversionFailed(File outFile, int exitCode)
     {
-        String message = "Failed to write " + outFile.getName();
+        String message = exitCode == ConversionScheduler.CANCELLED ?
+            "Conversion of " + outFile.getName() + " was cancelled." :
+            "Failed to write " + outFile.getName();
+        logger.info(message + " Exit code: " + exitCode);
         appController.getOnScreenDisplay().add(message);
     }
 
-    private void createAnimation(File workingDirectory)
+    protected void onConversionProgress(String name, int frame, int totalFrames)
+    {
+        // -- Show progress in 10% steps, or every 100 frames if the total
+        //    is unknown.
+        int step = totalFrames > 0 ? (10 * frame / totalFrames) : (frame / 100);
+        Integer shown = shownProgress.put(name, step);
+        if ((shown != null) && (shown == step))
+        {
+            return;
+        }
+        String progress = totalFrames > 0 ?
+            Math.min(100, 100 * frame / totalFrames) + "%" :
+            "frame " + frame;
+        appController.getOnScreenDisplay().add(
+            "convert-" + name, "Converting " + name + ": " + progress);
+    }
+
+    private File getOutFile(File workingDirectory)
     {
         String name = workingDirectory.getName();
         String number =
             name.substring(name.length() - directoryIndexDigits);
-        File outFile = new File(outputFolder, "anim-" + number + ".mp4");
+        return new File(outputFolder, "anim-" + number + ".mp4");
+    }
 
-        Callback callback = (int exitCode) ->
+    private Callback createCallback(File outFile)
+    {
+        return (int exitCode) ->
         {
+            shownProgress.remove(outFile.getName());
             if (exitCode == 0)
             {
                 onConversionDone(outFile);
             }
             else
             {
-                onConversionDone(outFile);
+                onConversionFailed(outFile, exitCode);
             }
         };
-
-        runCmdWBackground(
-            workingDirectory, callback,
-            "ffmpeg -r " + fps + " -start_number 0 -i img-%04d.jpg " +
-                outFile.getAbsolutePath());
     }
 
-    static List<Thread> backgroundProcesses =
-        Collections.synchronizedList(new ArrayList<>());
-
-    private static void runCmdWBackground(
-        File workingDirectory, Callback callback, String cmdLine)
+    private void createAnimation(File workingDirectory)
     {
-        Thread thread = new Thread(() -> runCmd(
-            workingDirectory, callback, cmdLine));
-        thread.start();
-        backgroundProcesses.add(thread);
-    }
+        File outFile = getOutFile(workingDirectory);
+        Callback callback = createCallback(outFile);
 
-    public static void stopBackgroundProcesses()
-    {
-        for (Thread thread : backgroundProcesses)
-        {
-            logger.info("Interrupting background process "
-                + thread.getName());
-            thread.interrupt();
-        }
-        while (!backgroundProcesses.isEmpty())
+        FrameManifest manifest = FrameManifest.load(workingDirectory);
+        if (!manifest.exists())
         {
-            backgroundProcesses.removeIf(thread -> !thread.isAlive());
+            scheduler.submit(
+                outFile.getName(), workingDirectory,
+                encoderCommand(
+                    "-r", String.valueOf(fps), "-start_number", "0",
+                    "-i", "img-%04d.jpg", outFile.getAbsolutePath()),
+                0, callback);
+            return;
         }
-        logger.info("All background processes are finished.");
-    }
-
-    private static void runCmd(
-        File workingDirectory, Callback callback, String cmdLine)
-    {
-        runCmd(workingDirectory, callback, cmdLine.split("\\s+"));
-    }
-    private static void runCmd(
-        File workingDirectory, Callback callback, String... cmdLine)
-    {
-        logger.info("Starting command in " +
-            workingDirectory + Arrays.toString(cmdLine));
-        ProcessBuilder pb = new ProcessBuilder();
-        pb.directory(workingDirectory);
-        pb.command(cmdLine);
+        // -- Frame order is in the manifest, not in the file names.
+        File frameList = new File(workingDirectory, FRAME_LIST_NAME);
         try
         {
-            Process process = pb.start();
-
-            // TODO: dump stdOut, and stdErr to log4j
-            Thread thOut = startStreamReadingThread(
-                process, process.getInputStream(), System.out);
-            Thread thErr = startStreamReadingThread(
-                process, process.getErrorStream(), System.err);
-
-            int exitCode = process.waitFor();
-            thOut.interrupt();
-            thErr.interrupt();
-            thOut.join(1000);
-            thErr.join(1000);
-
-            // TODO: handle errors
-            logger.info("Command exit code = " + exitCode);
-
-            backgroundProcesses.remove(Thread.currentThread());
-
-            callback.perform(exitCode);
+            writeFrameList(frameList, manifest.getEntries());
         }
-        catch (IOException | InterruptedException e)
+        catch (IOException e)
         {
-            // TODO: handle errors
-            logger.error(e);
+            logger.error("Cannot write frame list " + frameList, e);
+            onConversionFailed(outFile, -1);
+            return;
         }
+        scheduler.submit(
+            outFile.getName(), workingDirectory,
+            encoderCommand(
+                "-f", "concat", "-i", FRAME_LIST_NAME,
+                "-r", String.valueOf(fps), outFile.getAbsolutePath()),
+            manifest.size(), callback);
     }
 
-    private static Thread startStreamReadingThread(
-        Process process, InputStream reader, PrintStream out)
+    /**
+     * @return ffmpeg command reporting its progress on the standard output.
+     */
+    private static List<String> encoderCommand(String... arguments)
     {
-        BufferedReader br =
-            new BufferedReader(
-                new InputStreamReader(reader));
+        List<String> command = new ArrayList<>(Arrays.asList(
+            "ffmpeg", "-nostdin", "-y", "-progress", "pipe:1", "-nostats"));
+        command.addAll(Arrays.asList(arguments));
+        return command;
+    }
 
-        return new Thread()
+    /**
+     * Writes the frames in order for the concat demuxer of ffmpeg.
+     */
+    private void writeFrameList(File frameList, List<FrameManifest.Entry> frames)
+        throws IOException
+    {
+        String duration = String.format(Locale.ROOT, "%.6f", 1.0 / fps);
+        try (PrintWriter writer = new PrintWriter(frameList, "UTF-8"))
         {
-            @Override
-            public void run()
+            writer.println("ffconcat version 1.0");
+            for (FrameManifest.Entry frame : frames)
             {
-                String line;
-                try
-                {
-                    while ((line = br.readLine()) != null)
-                    {
-                        out.println(line);
-                        if (!process.isAlive())
-                        {
-                            break;
-                        }
-                    }
-                }
-                catch (IOException e)
-                {
-                    logger.error(e);
-                    throw new IllegalStateException(e);
-                }
+                writer.println("file '" + frame.fileName + "'");
+                writer.println("duration " + duration);
             }
-        };
+            if (!frames.isEmpty())
+            {
+                // -- Duration of the last entry is only used when followed
+                //    by an other entry.
+                writer.println(
+                    "file '" + frames.get(frames.size() - 1).fileName + "'");
+            }
+        }
     }
 
     public interface Callback
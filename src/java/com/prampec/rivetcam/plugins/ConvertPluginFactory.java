@@ -15,10 +15,27 @@ public class ConvertPluginFactory
         Properties pluginProperties,
         AppController appController)
     {
-        return new ConvertPlugin(
+        ConvertPlugin plugin = new ConvertPlugin(
             appController,
             config.getPlaybackFps(),
             config.getDirectoryIndexDigits(),
-            pluginProperties.getProperty("outputFolder"));
+            pluginProperties.getProperty("outputFolder"),
+            Integer.parseInt(pluginProperties.getProperty(
+                "workers",
+                String.valueOf(Math.max(
+                    1, Runtime.getRuntime().availableProcessors() / 2)))),
+            Integer.parseInt(pluginProperties.getProperty("niceness", "10")),
+            Long.parseLong(
+                pluginProperties.getProperty("shutdownTimeoutMs", "5000")));
+        if (Boolean.parseBoolean(
+            pluginProperties.getProperty("incremental", "false")))
+        {
+            plugin.startIncremental(
+                Integer.parseInt(
+                    pluginProperties.getProperty("segmentFrames", "100")),
+                pluginProperties.getProperty(
+                    "encoderOptions", "-c:v libx264 -pix_fmt yuv420p"));
+        }
+        return plugin;
     }
 }
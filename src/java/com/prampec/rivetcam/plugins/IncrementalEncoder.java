@@ -0,0 +1,462 @@
+package com.prampec.rivetcam.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.prampec.rivetcam.FrameManifest;
+
+/**
+ * Encodes the frames of the active batch while they are captured. Frames
+ * are piped to an ffmpeg process as soon as they are saved, split into
+ * segments of a fixed number of frames. When the batch is finished, only
+ * the segments not matching the final order of the frames are encoded
+ * again, then the segments are joined without re-encoding.
+ * <p>
+ * All work is done on a single background thread.
+ */
+class IncrementalEncoder
+{
+    private static final Logger logger =
+        LogManager.getLogger(IncrementalEncoder.class);
+
+    private static final String SEGMENT_DIRECTORY_NAME = ".segments";
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+    private final int fps;
+    private final int segmentFrames;
+    private final String[] encoderOptions;
+    private final List<String> commandPrefix;
+    private final ExecutorService executor =
+        Executors.newSingleThreadExecutor(r ->
+        {
+            Thread thread = new Thread(r, "convert-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** Batch being encoded, only used on the executor thread. */
+    private File workingDirectory;
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * @param commandPrefix Command to start ffmpeg with, e.g. to lower its
+     * priority.
+     */
+    IncrementalEncoder(
+        int fps, int segmentFrames, String encoderOptions,
+        List<String> commandPrefix)
+    {
+        this.commandPrefix = commandPrefix;
+        this.fps = fps;
+        this.segmentFrames = segmentFrames;
+        this.encoderOptions = encoderOptions.trim().split("\\s+");
+    }
+
+    void frameSaved(File frame)
+    {
+        execute(() -> append(frame));
+    }
+
+    void frameRemoved(File frame)
+    {
+        execute(() -> remove(frame));
+    }
+
+    /**
+     * Completes the animation of a batch.
+     */
+    void finish(
+        File workingDirectory, File outFile, ConvertPlugin.Callback callback)
+    {
+        execute(() -> complete(workingDirectory, outFile, callback));
+    }
+
+    void shutdown()
+    {
+        executor.shutdownNow();
+        try
+        {
+            // -- Segments are only touched by the executor thread, wait
+            //    for it to stop before cleaning them up.
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("Encoder did not stop in " + SHUTDOWN_TIMEOUT_MS +
+                    " ms, leaving its segments behind.");
+                return;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Segment segment : segments)
+        {
+            segment.abort();
+        }
+    }
+
+    private void execute(Runnable task)
+    {
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.debug("Encoder is shut down, ignoring task.");
+        }
+    }
+
+    private void append(File frame)
+    {
+        File directory = frame.getParentFile();
+        if (!directory.equals(workingDirectory))
+        {
+            discardSegments();
+            workingDirectory = directory;
+        }
+        Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if ((tail == null) || !tail.isOpen() ||
+            (tail.frames.size() >= segmentFrames))
+        {
+            if (tail != null)
+            {
+                tail.closeInput();
+            }
+            tail = new Segment(segments.size());
+            segments.add(tail);
+            tail.start();
+        }
+        tail.append(frame);
+    }
+
+    /**
+     * Encodes the tail segment again, when its last frame was removed.
+     * Removal of other frames is handled when the batch is finished.
+     */
+    private void remove(File frame)
+    {
+        if (segments.isEmpty())
+        {
+            return;
+        }
+        Segment tail = segments.get(segments.size() - 1);
+        if (tail.frames.isEmpty() ||
+            !tail.frames.get(tail.frames.size() - 1).equals(frame))
+        {
+            return;
+        }
+        tail.abort();
+        tail.frames.remove(tail.frames.size() - 1);
+        if (tail.frames.isEmpty())
+        {
+            segments.remove(tail);
+            return;
+        }
+        logger.debug("Encoding segment " + tail.number + " again.");
+        List<File> frames = new ArrayList<>(tail.frames);
+        tail.frames.clear();
+        tail.start();
+        for (File remaining : frames)
+        {
+            tail.append(remaining);
+        }
+    }
+
+    private void complete(
+        File directory, File outFile, ConvertPlugin.Callback callback)
+    {
+        long start = System.currentTimeMillis();
+        if (!directory.equals(workingDirectory))
+        {
+            // -- Nothing was captured in this session, encode everything.
+            discardSegments();
+            workingDirectory = directory;
+        }
+        List<File> order = new ArrayList<>();
+        for (FrameManifest.Entry entry :
+            FrameManifest.load(directory).getEntries())
+        {
+            order.add(new File(directory, entry.fileName));
+        }
+        if (order.isEmpty())
+        {
+            logger.info("No frames to convert in " + directory);
+            discardSegments();
+            return;
+        }
+
+        int reencoded = 0;
+        int count = (order.size() + segmentFrames - 1) / segmentFrames;
+        for (int i = 0; i < count; i++)
+        {
+            List<File> expected = order.subList(
+                i * segmentFrames, Math.min(order.size(), (i + 1) * segmentFrames));
+            Segment segment = i < segments.size() ? segments.get(i) : null;
+            if ((segment != null) && segment.frames.equals(expected) &&
+                segment.finish())
+            {
+                continue;
+            }
+            if (segment != null)
+            {
+                segment.abort();
+            }
+            segment = new Segment(i);
+            segment.start();
+            for (File frame : expected)
+            {
+                segment.append(frame);
+            }
+            if (i < segments.size())
+            {
+                segments.set(i, segment);
+            }
+            else
+            {
+                segments.add(segment);
+            }
+            reencoded += 1;
+            if (!segment.finish())
+            {
+                logger.error("Encoding segment " + i + " of " + directory + " failed.");
+                discardSegments();
+                callback.perform(-1);
+                return;
+            }
+        }
+        while (segments.size() > count)
+        {
+            segments.remove(segments.size() - 1).abort();
+        }
+
+        int exitCode = join(outFile);
+        logger.info("Animation of " + order.size() + " frames completed in " +
+            (System.currentTimeMillis() - start) + " ms after the batch, " +
+            reencoded + " of " + count + " segments encoded at the end.");
+        if (exitCode == 0)
+        {
+            discardSegments();
+        }
+        callback.perform(exitCode);
+    }
+
+    /**
+     * Concatenates the segments without encoding them again.
+     */
+    private int join(File outFile)
+    {
+        File segmentDirectory = getSegmentDirectory();
+        File list = new File(segmentDirectory, "segments.ffconcat");
+        try (PrintWriter writer = new PrintWriter(list, "UTF-8"))
+        {
+            writer.println("ffconcat version 1.0");
+            for (Segment segment : segments)
+            {
+                writer.println("file '" + segment.output.getName() + "'");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot write segment list " + list, e);
+            return -1;
+        }
+        List<String> command = new ArrayList<>(commandPrefix);
+        command.addAll(Arrays.asList(
+            "ffmpeg", "-nostdin", "-y", "-f", "concat", "-i", list.getName(),
+            "-c", "copy", outFile.getAbsolutePath()));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(segmentDirectory);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(
+            new File(segmentDirectory, "encoder.log")));
+        try
+        {
+            return pb.start().waitFor();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot start ffmpeg.", e);
+            return -1;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private void discardSegments()
+    {
+        for (Segment segment : segments)
+        {
+            segment.abort();
+        }
+        segments.clear();
+        if (workingDirectory != null)
+        {
+            File segmentDirectory = getSegmentDirectory();
+            File[] files = segmentDirectory.listFiles();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    file.delete();
+                }
+            }
+            segmentDirectory.delete();
+        }
+    }
+
+    private File getSegmentDirectory()
+    {
+        return new File(workingDirectory, SEGMENT_DIRECTORY_NAME);
+    }
+
+    /**
+     * Part of the animation encoded by its own ffmpeg process.
+     */
+    private class Segment
+    {
+        final int number;
+        final File output;
+        final List<File> frames = new ArrayList<>();
+        private Process process;
+        private OutputStream input;
+        private boolean failed;
+        private Integer exitCode;
+
+        Segment(int number)
+        {
+            this.number = number;
+            this.output = new File(getSegmentDirectory(),
+                String.format("seg-%04d.ts", number));
+        }
+
+        void start()
+        {
+            failed = false;
+            exitCode = null;
+            File segmentDirectory = getSegmentDirectory();
+            segmentDirectory.mkdirs();
+            List<String> command = new ArrayList<>(commandPrefix);
+            command.addAll(Arrays.asList(
+                "ffmpeg", "-y", "-f", "image2pipe", "-framerate", String.valueOf(fps),
+                "-c:v", "mjpeg", "-i", "-"));
+            command.addAll(Arrays.asList(encoderOptions));
+            command.addAll(Arrays.asList("-f", "mpegts", output.getName()));
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.directory(segmentDirectory);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(
+                new File(segmentDirectory, "encoder.log")));
+            try
+            {
+                process = pb.start();
+                input = process.getOutputStream();
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot start ffmpeg.", e);
+                failed = true;
+            }
+        }
+
+        boolean isOpen()
+        {
+            return input != null;
+        }
+
+        void append(File frame)
+        {
+            frames.add(frame);
+            if (input == null)
+            {
+                failed = true;
+                return;
+            }
+            try
+            {
+                Files.copy(frame.toPath(), input);
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot pipe " + frame + " to encoder.", e);
+                failed = true;
+                closeInput();
+            }
+        }
+
+        void closeInput()
+        {
+            if (input != null)
+            {
+                try
+                {
+                    input.close();
+                }
+                catch (IOException e)
+                {
+                    failed = true;
+                }
+                input = null;
+            }
+        }
+
+        /**
+         * Waits for the encoding to finish.
+         *
+         * @return True if the segment was encoded successfully.
+         */
+        boolean finish()
+        {
+            closeInput();
+            if ((exitCode == null) && (process != null))
+            {
+                try
+                {
+                    exitCode = process.waitFor();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !failed && (exitCode != null) && (exitCode == 0);
+        }
+
+        void abort()
+        {
+            closeInput();
+            if (process != null)
+            {
+                process.destroyForcibly();
+                try
+                {
+                    process.waitFor();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                process = null;
+            }
+            exitCode = null;
+            output.delete();
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package com.prampec.rivetcam.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.prampec.rivetcam.AppController;
+import com.prampec.rivetcam.FrameManifest;
+import com.prampec.rivetcam.RivetCamPlugin;
+import com.prampec.rivetcam.SnapshotListener;
+
+/**
+ * Mirrors saved frames and manifests to a backup directory, e.g. on an USB
+ * disk or a mounted share. Copies are made in the background when frames
+ * are saved and batches are finished, checked by their CRC, and throttled
+ * to leave the storage to the capture.
+ * <p>
+ * Replicated files are recorded in a journal in the backup directory, so
+ * after a restart only the files missing from the backup are copied.
+ */
+public class ReplicationPlugin implements RivetCamPlugin
+{
+    private static final Logger logger =
+        LogManager.getLogger(ReplicationPlugin.class);
+
+    static final String JOURNAL_NAME = ".replication.journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /** Bytes compared at the end of a replicated manifest before appending. */
+    private static final int TAIL_CHECK_SIZE = 4096;
+
+    private final AppController appController;
+    private final File targetDirectory;
+    private final long maxBytesPerSecond;
+    private final long idleDelayMs;
+    private final File journal;
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private volatile long lastSaveTime = 0;
+
+    // -- Used by the worker thread only.
+    /** Replicated files by "batch/file". */
+    private final Map<String, Replica> replicated = new HashMap<>();
+    private final Set<String> completeBatches = new HashSet<>();
+    /** Replicated part of the manifests by batch name. */
+    private final Map<String, ManifestReplica> manifestReplicas = new HashMap<>();
+    private long copiedBytes = 0;
+    private long failedCount = 0;
+
+    /**
+     * Size and CRC of a file when it was copied.
+     */
+    private static class Replica
+    {
+        final long size;
+        final long crc;
+
+        Replica(long size, long crc)
+        {
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Length and running CRC of the manifest part already copied, so only
+     * the appended part has to be read on the next save.
+     */
+    private static class ManifestReplica
+    {
+        /** Identity of the source file, to notice a recreated manifest. */
+        final Object fileKey;
+        final CRC32 crc = new CRC32();
+        long size = 0;
+
+        ManifestReplica(Object fileKey)
+        {
+            this.fileKey = fileKey;
+        }
+    }
+
+    /**
+     * @param maxBytesPerSecond Copy speed limit, 0 for unlimited.
+     * @param idleDelayMs Copying waits until no frame was saved for this
+     * long.
+     */
+    public ReplicationPlugin(
+        AppController appController,
+        File baseDirectory,
+        String directoryPrefix,
+        File targetDirectory,
+        long maxBytesPerSecond,
+        long idleDelayMs)
+    {
+        this.appController = appController;
+        this.targetDirectory = targetDirectory;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.idleDelayMs = idleDelayMs;
+        this.journal = new File(targetDirectory, JOURNAL_NAME);
+
+        worker = new Thread(this::work, "replication");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+
+        tasks.add(() ->
+        {
+            loadJournal();
+            catchUp(baseDirectory, directoryPrefix);
+        });
+        appController.addSnapshotListener(new SnapshotListener()
+        {
+            @Override
+            public void snapshotSaved(File file)
+            {
+                lastSaveTime = System.currentTimeMillis();
+                tasks.add(() -> replicateFrame(file));
+            }
+
+            @Override
+            public void frameRemoved(File file)
+            {
+                tasks.add(() -> removeFrame(file));
+            }
+        });
+        worker.start();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        running = false;
+        worker.interrupt();
+        try
+        {
+            worker.join(2000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Replication stopped, " + copiedBytes / 1024 +
+            " kB copied, " + failedCount + " failures, " + tasks.size() +
+            " tasks left for the next start.");
+    }
+
+    @Override
+    public void batchFinished(File workingDirectory)
+    {
+        tasks.add(() ->
+        {
+            if (replicateBatch(workingDirectory))
+            {
+                completeBatches.add(workingDirectory.getName());
+                appendJournal("=\t" + workingDirectory.getName());
+                appController.getOnScreenDisplay().add(
+                    "Batch " + workingDirectory.getName() + " was backed up.");
+            }
+        });
+    }
+
+    private void work()
+    {
+        while (running)
+        {
+            try
+            {
+                Runnable task = tasks.take();
+                waitForIdle();
+                task.run();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Replication task failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Waits while frames are being saved.
+     */
+    private void waitForIdle() throws InterruptedException
+    {
+        long idle;
+        while ((idle = System.currentTimeMillis() - lastSaveTime) < idleDelayMs)
+        {
+            Thread.sleep(idleDelayMs - idle);
+        }
+    }
+
+    private void catchUp(File baseDirectory, String directoryPrefix)
+    {
+        File[] batches = baseDirectory.listFiles(
+            file -> file.isDirectory() && file.getName().startsWith(directoryPrefix));
+        if (batches == null)
+        {
+            return;
+        }
+        for (File batch : batches)
+        {
+            if (!completeBatches.contains(batch.getName()))
+            {
+                tasks.add(() -> replicateBatch(batch));
+            }
+        }
+    }
+
+    private void replicateFrame(File frame)
+    {
+        File batch = frame.getParentFile();
+        if (completeBatches.remove(batch.getName()))
+        {
+            // -- Batch was resumed.
+            appendJournal("~\t" + batch.getName());
+        }
+        replicate(frame);
+        replicateManifest(batch);
+    }
+
+    /**
+     * Copies the frames of a batch missing from the backup.
+     *
+     * @return True if the batch is completely backed up.
+     */
+    private boolean replicateBatch(File batch)
+    {
+        boolean complete = true;
+        for (File frame : listFrames(batch))
+        {
+            if (!running)
+            {
+                return false;
+            }
+            complete &= replicate(frame);
+        }
+        return complete && replicateManifest(batch);
+    }
+
+    private static List<File> listFrames(File batch)
+    {
+        List<File> frames = new ArrayList<>();
+        FrameManifest manifest = FrameManifest.load(batch);
+        if (manifest.exists())
+        {
+            for (FrameManifest.Entry entry : manifest.getEntries())
+            {
+                frames.add(new File(batch, entry.fileName));
+            }
+            return frames;
+        }
+        // -- Batch from before the manifests.
+        File[] files = batch.listFiles(
+            (dir, name) -> name.endsWith(".jpg") && !name.startsWith("."));
+        if (files != null)
+        {
+            Collections.addAll(frames, files);
+        }
+        return frames;
+    }
+
+    private void removeFrame(File frame)
+    {
+        String key = getKey(frame);
+        replicated.remove(key);
+        File copy = new File(targetDirectory, key);
+        if (copy.exists() && !copy.delete())
+        {
+            logger.error("Cannot remove backup copy " + copy);
+        }
+        appendJournal("-\t" + frame.getParentFile().getName() + "\t" + frame.getName());
+        replicateManifest(frame.getParentFile());
+    }
+
+    /**
+     * Copies a file, unless the same content is already in the backup.
+     *
+     * @return True if the file is in the backup.
+     */
+    private boolean replicate(File file)
+    {
+        String key = getKey(file);
+        File copy = new File(targetDirectory, key);
+        File temp = new File(copy.getParentFile(), "." + copy.getName() + TEMP_SUFFIX);
+        try
+        {
+            Replica replica = replicated.get(key);
+            if ((replica != null) && (replica.size == file.length()))
+            {
+                // -- A reused batch name can have a file of the same size.
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                {
+                    if (checksum(in, replica.size) == replica.crc)
+                    {
+                        return true;
+                    }
+                }
+            }
+            Files.createDirectories(copy.getParentFile().toPath());
+            long size;
+            long crc;
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                size = in.size();
+                transfer(in, out, 0, size);
+                out.force(false);
+                crc = checksum(in, size);
+                if (crc != checksum(out, size))
+                {
+                    throw new IOException("Checksum of the copy does not match.");
+                }
+            }
+            Files.move(temp.toPath(), copy.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            replicated.put(key, new Replica(size, crc));
+            copiedBytes += size;
+            appendJournal("+\t" + file.getParentFile().getName() + "\t" +
+                file.getName() + "\t" + size + "\t" + Long.toHexString(crc));
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            // -- Removed since it was saved.
+            temp.delete();
+            return true;
+        }
+        catch (IOException e)
+        {
+            failedCount += 1;
+            logger.error("Cannot replicate " + file + " to " + copy, e);
+            temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * The manifest is only appended to, so only its new part is copied, if
+     * the copy is still the beginning of it. The copied length and CRC are
+     * remembered, the whole copy is compared only when it does not match
+     * them, e.g. after a restart or when the batch name was reused.
+     */
+    private boolean replicateManifest(File batch)
+    {
+        File manifest = new File(batch, FrameManifest.FILE_NAME);
+        File copy = new File(new File(targetDirectory, batch.getName()), manifest.getName());
+        try (FileChannel in = FileChannel.open(manifest.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(copy.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ))
+        {
+            Object fileKey = Files.readAttributes(
+                manifest.toPath(), BasicFileAttributes.class).fileKey();
+            ManifestReplica replica = manifestReplicas.get(batch.getName());
+            long from = out.size();
+            long size = in.size();
+            if ((replica == null) || (replica.size != from) ||
+                (from > size) || (fileKey == null) ||
+                !fileKey.equals(replica.fileKey) || !tailMatches(in, out, from))
+            {
+                replica = new ManifestReplica(fileKey);
+                if (from <= size)
+                {
+                    update(replica.crc, in, 0, from);
+                }
+                if ((from > size) || (replica.crc.getValue() != checksum(out, from)))
+                {
+                    // -- Not a copy of this manifest, e.g. the batch name
+                    //    was reused.
+                    out.truncate(0);
+                    from = 0;
+                    replica.crc.reset();
+                }
+                replica.size = from;
+                manifestReplicas.put(batch.getName(), replica);
+            }
+            transfer(in, out, from, size - from);
+            out.force(false);
+            update(replica.crc, in, from, size);
+            replica.size = size;
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            return true; // -- No frames yet.
+        }
+        catch (IOException e)
+        {
+            failedCount += 1;
+            manifestReplicas.remove(batch.getName());
+            logger.error("Cannot replicate manifest of " + batch, e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies by the operating system, in chunks paced to the speed limit.
+     */
+    private void transfer(FileChannel in, FileChannel out, long from, long count)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        long done = 0;
+        out.position(from);
+        while (done < count)
+        {
+            long transferred = in.transferTo(
+                from + done, Math.min(CHUNK_SIZE, count - done), out);
+            if (transferred <= 0)
+            {
+                throw new IOException("Source ended before its size.");
+            }
+            done += transferred;
+            if (maxBytesPerSecond > 0)
+            {
+                long dueNs = done * 1000000000L / maxBytesPerSecond;
+                long aheadMs = (dueNs - (System.nanoTime() - start)) / 1000000;
+                if (aheadMs > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(aheadMs);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Replication interrupted.");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the last few kilobytes before the position, as a cheap
+     * check that the source was not replaced by a file reusing its
+     * identity.
+     */
+    private static boolean tailMatches(FileChannel in, FileChannel out, long position)
+        throws IOException
+    {
+        long from = Math.max(0, position - TAIL_CHECK_SIZE);
+        ByteBuffer source = ByteBuffer.allocate((int) (position - from));
+        ByteBuffer target = ByteBuffer.allocate(source.capacity());
+        while (source.hasRemaining() &&
+            (in.read(source, from + source.position()) > 0))
+        {
+            // -- Read fully.
+        }
+        while (target.hasRemaining() &&
+            (out.read(target, from + target.position()) > 0))
+        {
+            // -- Read fully.
+        }
+        source.flip();
+        target.flip();
+        return source.equals(target);
+    }
+
+    /**
+     * @return CRC of the first length bytes of the channel.
+     */
+    private static long checksum(FileChannel channel, long length) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        update(crc, channel, 0, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Adds the bytes of the channel between the positions to the CRC.
+     */
+    private static void update(CRC32 crc, FileChannel channel, long from, long to)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        int count;
+        while (position < to)
+        {
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            count = channel.read(buffer, position);
+            if (count <= 0)
+            {
+                break;
+            }
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+            position += count;
+        }
+    }
+
+    private void loadJournal()
+    {
+        List<String> lines;
+        try
+        {
+            lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        }
+        catch (NoSuchFileException e)
+        {
+            return;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot read replication journal " + journal, e);
+            return;
+        }
+        for (String line : lines)
+        {
+            String[] fields = line.split("\t");
+            try
+            {
+                switch (fields[0])
+                {
+                    case "+":
+                        replicated.put(fields[1] + "/" + fields[2], new Replica(
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4], 16)));
+                        break;
+                    case "-":
+                        replicated.remove(fields[1] + "/" + fields[2]);
+                        break;
+                    case "=":
+                        completeBatches.add(fields[1]);
+                        break;
+                    case "~":
+                        completeBatches.remove(fields[1]);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Ignoring invalid journal line: " + line);
+            }
+        }
+        logger.info("Replication journal lists " + replicated.size() +
+            " files, " + completeBatches.size() + " complete batches.");
+    }
+
+    private void appendJournal(String line)
+    {
+        try
+        {
+            Files.createDirectories(targetDirectory.toPath());
+            try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(journal, true), StandardCharsets.UTF_8))
+            {
+                writer.write(line + "\n");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot write replication journal " + journal, e);
+        }
+    }
+
+    private static String getKey(File file)
+    {
+        return file.getParentFile().getName() + "/" + file.getName();
+    }
+}
@@ -0,0 +1,28 @@
+package com.prampec.rivetcam.plugins;
+
+import java.io.File;
+import java.util.Properties;
+
+import com.prampec.rivetcam.AppController;
+import com.prampec.rivetcam.ConfigurationManager;
+import com.prampec.rivetcam.RivetCamPlugin;
+import com.prampec.rivetcam.RivetCamPluginFactory;
+
+public class ReplicationPluginFactory
+    implements RivetCamPluginFactory
+{
+    public RivetCamPlugin create(
+        ConfigurationManager config,
+        Properties pluginProperties,
+        AppController appController)
+    {
+        return new ReplicationPlugin(
+            appController,
+            new File(config.getBaseDirectoryPath()),
+            config.getDirectoryPrefix(),
+            new File(pluginProperties.getProperty("targetDirectory")),
+            Long.parseLong(
+                pluginProperties.getProperty("maxBytesPerSecond", "4000000")),
+            Long.parseLong(pluginProperties.getProperty("idleDelayMs", "500")));
+    }
+}
@@ -0,0 +1,71 @@
+package com.prampec.rivetcam.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.prampec.rivetcam.AppController;
+import com.prampec.rivetcam.RivetCamPlugin;
+import com.prampec.rivetcam.SequenceExporter;
+
+/**
+ * Exports downscaled copies of the frames of finished batches.
+ */
+public class SequenceExportPlugin implements RivetCamPlugin
+{
+    private static final Logger logger =
+        LogManager.getLogger(SequenceExportPlugin.class);
+
+    private final AppController appController;
+    private final SequenceExporter exporter;
+    private final String outputFolder;
+    private final ExecutorService executor =
+        Executors.newSingleThreadExecutor(r ->
+        {
+            Thread thread = new Thread(r, "sequence-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    public SequenceExportPlugin(
+        AppController appController,
+        SequenceExporter exporter,
+        String outputFolder)
+    {
+        this.appController = appController;
+        this.exporter = exporter;
+        this.outputFolder = outputFolder;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        executor.shutdownNow();
+        exporter.shutdown();
+    }
+
+    @Override
+    public void batchFinished(File workingDirectory)
+    {
+        executor.execute(() ->
+        {
+            File outputDirectory =
+                new File(outputFolder, workingDirectory.getName());
+            try
+            {
+                int count = exporter.export(workingDirectory, outputDirectory);
+                appController.getOnScreenDisplay().add(
+                    count + " frames exported to " + outputDirectory.getName());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.error("Export of " + workingDirectory + " failed.", e);
+                appController.getOnScreenDisplay().add(
+                    "Failed to export " + workingDirectory.getName());
+            }
+        });
+    }
+}
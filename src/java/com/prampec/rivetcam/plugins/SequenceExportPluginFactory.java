@@ -0,0 +1,33 @@
+package com.prampec.rivetcam.plugins;
+
+import java.util.Properties;
+
+import com.prampec.rivetcam.AppController;
+import com.prampec.rivetcam.ConfigurationManager;
+import com.prampec.rivetcam.RivetCamPlugin;
+import com.prampec.rivetcam.RivetCamPluginFactory;
+import com.prampec.rivetcam.SequenceExporter;
+import com.prampec.util.PropertiesHelper;
+
+public class SequenceExportPluginFactory
+    implements RivetCamPluginFactory
+{
+    public RivetCamPlugin create(
+        ConfigurationManager config,
+        Properties pluginProperties,
+        AppController appController)
+    {
+        SequenceExporter exporter = new SequenceExporter(
+            PropertiesHelper.parseDimension(
+                pluginProperties.getProperty("size", "1280x720")),
+            Integer.parseInt(pluginProperties.getProperty("quality", "85")),
+            Integer.parseInt(pluginProperties.getProperty(
+                "threads",
+                String.valueOf(Math.max(
+                    1, Runtime.getRuntime().availableProcessors() / 2)))),
+            true);
+        return new SequenceExportPlugin(
+            appController, exporter,
+            pluginProperties.getProperty("outputFolder"));
+    }
+}
@@ -0,0 +1,100 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * A frame backed by a byte array, decoded on demand.
+ */
+public class ByteArrayFrame implements CapturedFrame
+{
+    private final byte[] bytes;
+    private final int length;
+    private final long sequenceNumber;
+    private final long captureTime;
+    private final int width;
+    private final int height;
+    private BufferedImage image;
+
+    /**
+     * @param image The already decoded image, or null if the image should
+     * be decoded from bytes when requested.
+     */
+    public ByteArrayFrame(
+        byte[] bytes, int length,
+        long sequenceNumber, long captureTime,
+        int width, int height,
+        BufferedImage image)
+    {
+        this.bytes = bytes;
+        this.length = length;
+        this.sequenceNumber = sequenceNumber;
+        this.captureTime = captureTime;
+        this.width = width;
+        this.height = height;
+        this.image = image;
+    }
+
+    @Override
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public int getFrameLength()
+    {
+        return length;
+    }
+
+    @Override
+    public long getSequenceNumber()
+    {
+        return sequenceNumber;
+    }
+
+    @Override
+    public long getCaptureTime()
+    {
+        return captureTime;
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public synchronized BufferedImage getBufferedImage()
+    {
+        if (image == null)
+        {
+            try
+            {
+                image = ImageIO.read(
+                    new ByteArrayInputStream(bytes, 0, length));
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(
+                    "Cannot decode frame " + sequenceNumber, e);
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public void recycle()
+    {
+        // Nothing to do, memory is reclaimed by the garbage collector.
+    }
+}
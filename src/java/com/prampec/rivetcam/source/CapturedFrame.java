@@ -0,0 +1,40 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A single frame delivered by a FrameSource. Content is a JPEG compressed
+ * image.
+ */
+public interface CapturedFrame
+{
+    /**
+     * @return The compressed JPEG data. The array might be longer than the
+     * actual frame, only the first getFrameLength() bytes are valid. The
+     * array is only valid until recycle() is called.
+     */
+    byte[] getBytes();
+
+    int getFrameLength();
+
+    long getSequenceNumber();
+
+    /**
+     * @return Capture time in microseconds.
+     */
+    long getCaptureTime();
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return The decoded image.
+     */
+    BufferedImage getBufferedImage();
+
+    /**
+     * Hands the frame back to the source for reuse.
+     */
+    void recycle();
+}
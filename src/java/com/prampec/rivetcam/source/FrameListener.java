@@ -0,0 +1,16 @@
+package com.prampec.rivetcam.source;
+
+/**
+ * Receives the frames produced by a FrameSource. Methods are called on the
+ * capture thread of the source.
+ */
+public interface FrameListener
+{
+    /**
+     * A new frame has arrived. The frame must be recycled by the listener
+     * after it is no longer needed.
+     */
+    void nextFrame(CapturedFrame frame);
+
+    void exceptionReceived(FrameSourceException e);
+}
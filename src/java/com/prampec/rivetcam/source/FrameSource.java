@@ -0,0 +1,45 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.*;
+
+/**
+ * Source of camera frames. A source delivers frames to a single
+ * FrameListener between startCapture() and stopCapture().
+ */
+public interface FrameSource
+{
+    /**
+     * @return Human readable name of the source, e.g. the camera name.
+     */
+    String getName();
+
+    /**
+     * Starts delivering frames.
+     *
+     * @param listener Receives the frames on the capture thread.
+     * @param resolution Requested frame resolution.
+     * @param jpegQuality JPEG quality of the frames (0..100).
+     */
+    void startCapture(
+        FrameListener listener, Dimension resolution, int jpegQuality)
+        throws FrameSourceException;
+
+    /**
+     * Stops delivering frames. After this call returns, no more frames
+     * will be delivered to the listener.
+     */
+    void stopCapture();
+
+    boolean isCapturing();
+
+    /**
+     * @return The control with the given name, or null if the source does
+     * not provide it.
+     */
+    FrameSourceControl getControl(String name);
+
+    /**
+     * Releases all resources held by the source.
+     */
+    void release();
+}
@@ -0,0 +1,19 @@
+package com.prampec.rivetcam.source;
+
+/**
+ * An adjustable camera control, e.g. focus or exposure.
+ */
+public interface FrameSourceControl
+{
+    String getName();
+
+    int getValue() throws FrameSourceException;
+
+    void setValue(int value) throws FrameSourceException;
+
+    int getMinValue();
+
+    int getMaxValue();
+
+    int getStepValue();
+}
@@ -0,0 +1,25 @@
+package com.prampec.rivetcam.source;
+
+/**
+ * Signals that a frame source failed to start, to deliver a frame or to
+ * access one of its controls.
+ */
+public class FrameSourceException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public FrameSourceException(String message)
+    {
+        super(message);
+    }
+
+    public FrameSourceException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+
+    public FrameSourceException(Throwable cause)
+    {
+        super(cause);
+    }
+}
@@ -0,0 +1,54 @@
+package com.prampec.rivetcam.source;
+
+import java.io.File;
+import java.util.Properties;
+
+import com.prampec.util.PropertiesHelper;
+
+/**
+ * Creates the frame source selected by the configuration.
+ */
+public class FrameSourceFactory
+{
+    public static final String TYPE_V4L4J = "v4l4j";
+    public static final String TYPE_SYNTHETIC = "synthetic";
+    public static final String TYPE_REPLAY = "replay";
+
+    /**
+     * @param type One of the TYPE_* constants.
+     * @param videoDevice Device file used by the V4L4J source.
+     * @param properties Source specific properties, with the
+     * "frameSource.[type]." prefix already removed.
+     */
+    public static FrameSource create(
+        String type, String videoDevice, Properties properties)
+    {
+        if (TYPE_V4L4J.equals(type))
+        {
+            return new V4l4jFrameSource(videoDevice);
+        }
+        else if (TYPE_SYNTHETIC.equals(type))
+        {
+            return new SyntheticFrameSource(
+                PropertiesHelper.parseDimension(
+                    properties.getProperty("resolution")),
+                Double.parseDouble(properties.getProperty("fps", "25")),
+                SyntheticFrameSource.Pattern.valueOf(
+                    properties.getProperty("pattern", "bars").toUpperCase()));
+        }
+        else if (TYPE_REPLAY.equals(type))
+        {
+            String directory = properties.getProperty("directory");
+            if (directory == null)
+            {
+                throw new IllegalStateException(
+                    "frameSource.replay.directory must be set for replay source.");
+            }
+            return new ReplayFrameSource(
+                new File(directory),
+                Double.parseDouble(properties.getProperty("fps", "15")),
+                Boolean.parseBoolean(properties.getProperty("loop", "True")));
+        }
+        throw new IllegalStateException("Unknown frame source '" + type + "'");
+    }
+}
@@ -0,0 +1,89 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.prampec.util.JpegHelper;
+
+/**
+ * Streams the JPEG files of a directory in file name order at a fixed
+ * rate, e.g. to replay a previously recorded batch.
+ */
+public class ReplayFrameSource extends SimulatedFrameSource
+{
+    private static final Logger logger =
+        LogManager.getLogger(ReplayFrameSource.class);
+
+    private final File directory;
+    private final boolean loop;
+    private File[] files = null;
+    private int nextIndex;
+
+    public ReplayFrameSource(File directory, double fps, boolean loop)
+    {
+        super("Replay (" + directory.getName() + ")", fps);
+        this.directory = directory;
+        this.loop = loop;
+    }
+
+    @Override
+    public synchronized void startCapture(
+        FrameListener listener, Dimension resolution, int jpegQuality)
+        throws FrameSourceException
+    {
+        File[] found = directory.listFiles((dir, name) ->
+        {
+            String lowerName = name.toLowerCase();
+            return lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg");
+        });
+        if ((found == null) || (found.length == 0))
+        {
+            throw new FrameSourceException(
+                "No JPEG files to replay in " + directory.getAbsolutePath());
+        }
+        Arrays.sort(found);
+        files = found;
+        nextIndex = 0;
+        super.startCapture(listener, resolution, jpegQuality);
+    }
+
+    @Override
+    protected CapturedFrame produceFrame(
+        long sequenceNumber, Dimension resolution, int jpegQuality)
+        throws IOException
+    {
+        if (nextIndex >= files.length)
+        {
+            if (!loop)
+            {
+                return null;
+            }
+            nextIndex = 0;
+        }
+        File file = files[nextIndex];
+        nextIndex += 1;
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Dimension d = JpegHelper.readDimension(bytes, bytes.length);
+        if (d == null)
+        {
+            throw new IOException("Not a JPEG file: " + file);
+        }
+        if (!d.equals(resolution) && (sequenceNumber == 0))
+        {
+            logger.info("Replayed frames are " + d.width + "x" + d.height +
+                ", requested resolution " + resolution.width + "x" +
+                resolution.height + " is ignored.");
+        }
+        return new ByteArrayFrame(
+            bytes, bytes.length,
+            sequenceNumber, System.currentTimeMillis() * 1000,
+            d.width, d.height, null);
+    }
+}
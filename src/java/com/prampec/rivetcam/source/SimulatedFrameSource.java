@@ -0,0 +1,201 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Base class for frame sources that produce frames in software at a fixed
+ * rate. Controls are simulated: any control name requested is provided
+ * with a 0..255 range.
+ */
+public abstract class SimulatedFrameSource implements FrameSource
+{
+    private static final Logger logger =
+        LogManager.getLogger(SimulatedFrameSource.class);
+
+    private final String name;
+    private final double fps;
+    private final Map<String, SimulatedControl> controls =
+        new ConcurrentHashMap<>();
+    private volatile Thread captureThread = null;
+    private volatile boolean running = false;
+
+    protected SimulatedFrameSource(String name, double fps)
+    {
+        if (fps <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Frame rate must be positive, but was " + fps);
+        }
+        this.name = name;
+        this.fps = fps;
+    }
+
+    /**
+     * Creates the next frame. Called on the capture thread.
+     *
+     * @return The frame, or null if no frame is available this time.
+     */
+    protected abstract CapturedFrame produceFrame(
+        long sequenceNumber, Dimension resolution, int jpegQuality)
+        throws IOException;
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public synchronized void startCapture(
+        FrameListener listener, Dimension resolution, int jpegQuality)
+        throws FrameSourceException
+    {
+        if (captureThread != null)
+        {
+            throw new FrameSourceException(
+                "Source '" + name + "' is already capturing.");
+        }
+        running = true;
+        captureThread = new Thread(
+            () -> captureLoop(listener, resolution, jpegQuality),
+            "frame-source-" + name);
+        captureThread.setDaemon(true);
+        captureThread.start();
+        logger.info("Source '" + name + "' started with " +
+            resolution.width + "x" + resolution.height + " @ " + fps + " fps");
+    }
+
+    private void captureLoop(
+        FrameListener listener, Dimension resolution, int jpegQuality)
+    {
+        long periodNs = (long) (1_000_000_000L / fps);
+        long next = System.nanoTime();
+        long sequenceNumber = 0;
+        while (running)
+        {
+            try
+            {
+                CapturedFrame frame =
+                    produceFrame(sequenceNumber, resolution, jpegQuality);
+                sequenceNumber += 1;
+                if ((frame != null) && running)
+                {
+                    listener.nextFrame(frame);
+                }
+            }
+            catch (IOException e)
+            {
+                listener.exceptionReceived(new FrameSourceException(e));
+            }
+
+            next += periodNs;
+            long sleepNs = next - System.nanoTime();
+            if (sleepNs > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleepNs / 1_000_000, (int) (sleepNs % 1_000_000));
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+            else
+            {
+                // -- We are late, do not try to catch up with a burst.
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stopCapture()
+    {
+        Thread thread = captureThread;
+        running = false;
+        captureThread = null;
+        if ((thread != null) && (thread != Thread.currentThread()))
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean isCapturing()
+    {
+        return captureThread != null;
+    }
+
+    @Override
+    public FrameSourceControl getControl(String name)
+    {
+        return controls.computeIfAbsent(name, SimulatedControl::new);
+    }
+
+    @Override
+    public void release()
+    {
+        stopCapture();
+    }
+
+    private static class SimulatedControl implements FrameSourceControl
+    {
+        private final String name;
+        private volatile int value = 128;
+
+        SimulatedControl(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public int getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public void setValue(int value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public int getMinValue()
+        {
+            return 0;
+        }
+
+        @Override
+        public int getMaxValue()
+        {
+            return 255;
+        }
+
+        @Override
+        public int getStepValue()
+        {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import com.prampec.util.JpegHelper;
+
+/**
+ * Generates test frames, so the application can run without a camera.
+ * A moving marker and the frame number is drawn over a static pattern,
+ * thus consecutive frames are always different.
+ */
+public class SyntheticFrameSource extends SimulatedFrameSource
+{
+    public enum Pattern
+    {
+        BARS, GRADIENT, NOISE
+    }
+
+    private final Dimension fixedResolution;
+    private final Pattern pattern;
+    private BufferedImage background = null;
+
+    /**
+     * @param fixedResolution Resolution of the generated frames, or null to
+     * use the resolution requested on start.
+     */
+    public SyntheticFrameSource(
+        Dimension fixedResolution, double fps, Pattern pattern)
+    {
+        super("Synthetic (" + pattern.name().toLowerCase() + ")", fps);
+        this.fixedResolution = fixedResolution;
+        this.pattern = pattern;
+    }
+
+    @Override
+    protected CapturedFrame produceFrame(
+        long sequenceNumber, Dimension resolution, int jpegQuality)
+        throws IOException
+    {
+        Dimension d = fixedResolution != null ? fixedResolution : resolution;
+        if ((background == null) ||
+            (background.getWidth() != d.width) ||
+            (background.getHeight() != d.height))
+        {
+            background = createBackground(d.width, d.height);
+        }
+
+        BufferedImage image = new BufferedImage(
+            d.width, d.height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        try
+        {
+            g.drawImage(background, 0, 0, null);
+            int markerSize = Math.max(8, d.height / 8);
+            int span = Math.max(1, d.width - markerSize);
+            int x = (int) ((sequenceNumber * 8) % (2 * span));
+            if (x > span)
+            {
+                x = 2 * span - x;
+            }
+            g.setColor(Color.white);
+            g.fillRect(x, (d.height - markerSize) / 2, markerSize, markerSize);
+            g.setColor(Color.black);
+            g.setFont(new Font(Font.MONOSPACED, Font.BOLD, markerSize / 2));
+            g.drawString(
+                String.valueOf(sequenceNumber), markerSize / 4, markerSize);
+        }
+        finally
+        {
+            g.dispose();
+        }
+
+        byte[] bytes = JpegHelper.encode(image, jpegQuality);
+        return new ByteArrayFrame(
+            bytes, bytes.length,
+            sequenceNumber, System.currentTimeMillis() * 1000,
+            d.width, d.height, image);
+    }
+
+    private BufferedImage createBackground(int width, int height)
+    {
+        BufferedImage image = new BufferedImage(
+            width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        try
+        {
+            switch (pattern)
+            {
+                case BARS:
+                    Color[] colors = {
+                        Color.white, Color.yellow, Color.cyan, Color.green,
+                        Color.magenta, Color.red, Color.blue, Color.black,
+                    };
+                    int barWidth = (width + colors.length - 1) / colors.length;
+                    for (int i = 0; i < colors.length; i++)
+                    {
+                        g.setColor(colors[i]);
+                        g.fillRect(i * barWidth, 0, barWidth, height);
+                    }
+                    break;
+                case GRADIENT:
+                    g.setPaint(new GradientPaint(
+                        0, 0, Color.darkGray, width, height, Color.orange));
+                    g.fillRect(0, 0, width, height);
+                    break;
+                case NOISE:
+                    Random random = new Random(0);
+                    for (int y = 0; y < height; y++)
+                    {
+                        for (int x = 0; x < width; x++)
+                        {
+                            image.setRGB(x, y, random.nextInt(0x1000000));
+                        }
+                    }
+                    break;
+            }
+        }
+        finally
+        {
+            g.dispose();
+        }
+        return image;
+    }
+}
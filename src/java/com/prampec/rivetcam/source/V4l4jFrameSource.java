@@ -0,0 +1,250 @@
+package com.prampec.rivetcam.source;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.edu.jcu.v4l4j.CaptureCallback;
+import au.edu.jcu.v4l4j.Control;
+import au.edu.jcu.v4l4j.DeviceInfo;
+import au.edu.jcu.v4l4j.FrameGrabber;
+import au.edu.jcu.v4l4j.VideoDevice;
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.ControlException;
+import au.edu.jcu.v4l4j.exceptions.StateException;
+import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+
+/**
+ * Frame source reading a video4linux device with V4L4J.
+ */
+public class V4l4jFrameSource implements FrameSource
+{
+    private static final Logger logger =
+        LogManager.getLogger(V4l4jFrameSource.class);
+
+    private final VideoDevice videoDevice;
+    private final DeviceInfo di;
+    private FrameGrabber grabber = null;
+    /** Read without locking, so a paint does not wait for a start or stop. */
+    private volatile boolean capturing = false;
+
+    public V4l4jFrameSource(String deviceFile)
+    {
+        logger.info("Opening video device: " + deviceFile);
+        File file = new File(deviceFile);
+        try {
+            videoDevice = new VideoDevice(file.getAbsolutePath());
+        } catch (V4L4JException e) {
+            logger.error("Cannot instantiate V4L4J device from " + file, e);
+            throw new IllegalStateException("Cannot instantiate V4L4J device from " + file, e);
+        }
+        try {
+            di = videoDevice.getDeviceInfo();
+        } catch (V4L4JException e) {
+            throw new IllegalStateException("Cannot get video device information.", e);
+        }
+        logger.info("Video device name: " + di.getName());
+    }
+
+    @Override
+    public String getName()
+    {
+        return di.getName();
+    }
+
+    @Override
+    public synchronized void startCapture(
+        FrameListener listener, Dimension resolution, int jpegQuality)
+        throws FrameSourceException
+    {
+        try {
+            // TODO: also define image format
+            grabber = videoDevice.getJPEGFrameGrabber(
+                resolution.width, resolution.height, 0, 0, jpegQuality, null);
+        } catch (V4L4JException e) {
+            throw new FrameSourceException(e);
+        }
+
+        grabber.setCaptureCallback(new CaptureCallback()
+        {
+            @Override
+            public void nextFrame(VideoFrame frame)
+            {
+                listener.nextFrame(new V4l4jFrame(frame));
+            }
+
+            @Override
+            public void exceptionReceived(V4L4JException e)
+            {
+                listener.exceptionReceived(new FrameSourceException(e));
+            }
+        });
+
+        try {
+            grabber.startCapture();
+        } catch (V4L4JException e) {
+            grabber = null;
+            videoDevice.releaseFrameGrabber();
+            throw new FrameSourceException(e);
+        }
+        capturing = true;
+    }
+
+    @Override
+    public synchronized void stopCapture()
+    {
+        try {
+            if (grabber != null) {
+                grabber.stopCapture();
+            }
+        } catch (StateException e) {
+            logger.error(e);
+        }
+
+        grabber = null;
+        capturing = false;
+        videoDevice.releaseFrameGrabber();
+    }
+
+    @Override
+    public boolean isCapturing()
+    {
+        return capturing;
+    }
+
+    @Override
+    public FrameSourceControl getControl(String name)
+    {
+        Control control = videoDevice.getControlList().getControl(name);
+        if (control == null) {
+            return null;
+        }
+        return new V4l4jControl(control);
+    }
+
+    @Override
+    public void release()
+    {
+        try {
+            videoDevice.releaseControlList();
+            videoDevice.release();
+        } catch (StateException e) {
+            // ignore this
+        }
+    }
+
+    private static class V4l4jFrame implements CapturedFrame
+    {
+        private final VideoFrame frame;
+
+        V4l4jFrame(VideoFrame frame)
+        {
+            this.frame = frame;
+        }
+
+        @Override
+        public byte[] getBytes()
+        {
+            return frame.getBytes();
+        }
+
+        @Override
+        public int getFrameLength()
+        {
+            return frame.getFrameLength();
+        }
+
+        @Override
+        public long getSequenceNumber()
+        {
+            return frame.getSequenceNumber();
+        }
+
+        @Override
+        public long getCaptureTime()
+        {
+            return frame.getCaptureTime();
+        }
+
+        @Override
+        public int getWidth()
+        {
+            return frame.getFrameGrabber().getWidth();
+        }
+
+        @Override
+        public int getHeight()
+        {
+            return frame.getFrameGrabber().getHeight();
+        }
+
+        @Override
+        public BufferedImage getBufferedImage()
+        {
+            return frame.getBufferedImage();
+        }
+
+        @Override
+        public void recycle()
+        {
+            frame.recycle();
+        }
+    }
+
+    private static class V4l4jControl implements FrameSourceControl
+    {
+        private final Control control;
+
+        V4l4jControl(Control control)
+        {
+            this.control = control;
+        }
+
+        @Override
+        public String getName()
+        {
+            return control.getName();
+        }
+
+        @Override
+        public int getValue() throws FrameSourceException
+        {
+            try {
+                return control.getValue();
+            } catch (ControlException e) {
+                throw new FrameSourceException(e);
+            }
+        }
+
+        @Override
+        public void setValue(int value) throws FrameSourceException
+        {
+            try {
+                control.setValue(value);
+            } catch (ControlException e) {
+                throw new FrameSourceException(e);
+            }
+        }
+
+        @Override
+        public int getMinValue()
+        {
+            return control.getMinValue();
+        }
+
+        @Override
+        public int getMaxValue()
+        {
+            return control.getMaxValue();
+        }
+
+        @Override
+        public int getStepValue()
+        {
+            return control.getStepValue();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.prampec.util;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Helper methods to inspect JPEG data without decoding it.
+ */
+public class JpegHelper
+{
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    /** Frame header is expected within this many bytes of the file. */
+    private static final int HEADER_READ_LIMIT = 64 * 1024;
+
+    /**
+     * Reads the image dimension from the SOF header of a JPEG stream.
+     *
+     * @param data JPEG data.
+     * @param length Number of valid bytes in data.
+     * @return The dimension, or null if no frame header was found.
+     */
+    public static Dimension readDimension(byte[] data, int length)
+    {
+        if ((length < 4) || ((data[0] & 0xFF) != 0xFF) ||
+            ((data[1] & 0xFF) != MARKER_SOI))
+        {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= length)
+        {
+            if ((data[pos] & 0xFF) != 0xFF)
+            {
+                return null;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF)
+            {
+                pos += 1; // Fill byte.
+                continue;
+            }
+            int segmentLength =
+                ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            if (isStartOfFrame(marker))
+            {
+                if (pos + 9 > length)
+                {
+                    return null;
+                }
+                int height =
+                    ((data[pos + 5] & 0xFF) << 8) | (data[pos + 6] & 0xFF);
+                int width =
+                    ((data[pos + 7] & 0xFF) << 8) | (data[pos + 8] & 0xFF);
+                return new Dimension(width, height);
+            }
+            if (marker == MARKER_SOS)
+            {
+                return null;
+            }
+            pos += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    private static boolean isStartOfFrame(int marker)
+    {
+        // SOF0..SOF15, except DHT (C4), JPG (C8) and DAC (CC).
+        return (marker >= 0xC0) && (marker <= 0xCF) &&
+            (marker != 0xC4) && (marker != 0xC8) && (marker != 0xCC);
+    }
+
+    /**
+     * Reads the image dimension from the header of a JPEG file, without
+     * reading the whole file.
+     *
+     * @return The dimension, or null if no frame header was found.
+     */
+    public static Dimension readDimension(File file) throws IOException
+    {
+        byte[] header = new byte[HEADER_READ_LIMIT];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file))
+        {
+            int count;
+            while ((length < header.length) &&
+                ((count = in.read(header, length, header.length - length)) > 0))
+            {
+                length += count;
+            }
+        }
+        return readDimension(header, length);
+    }
+
+    /**
+     * Compresses an image to JPEG.
+     *
+     * @param image Image to be compressed.
+     * @param quality JPEG quality (0..100).
+     * @return The JPEG data.
+     */
+    public static byte[] encode(BufferedImage image, int quality)
+        throws IOException
+    {
+        ImageWriter writer =
+            ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out))
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
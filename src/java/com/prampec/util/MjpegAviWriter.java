@@ -0,0 +1,243 @@
+package com.prampec.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes JPEG images as frames of a Motion JPEG AVI file, without decoding
+ * or encoding them. Frame data is copied from the image files by the
+ * operating system, the file is completed with the index and the final
+ * header values on close.
+ */
+public class MjpegAviWriter implements Closeable
+{
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final int HEADER_SIZE = 224;
+    /** AVI 1.0 files cannot be larger. */
+    private static final long MAX_FILE_SIZE = 0x7FFFFFFFL;
+
+    // -- Positions of the header fields patched on close.
+    private static final int RIFF_SIZE_POS = 4;
+    private static final int AVIH_MAX_BYTES_PER_SEC_POS = 36;
+    private static final int AVIH_TOTAL_FRAMES_POS = 48;
+    private static final int AVIH_SUGGESTED_BUFFER_POS = 60;
+    private static final int STRH_LENGTH_POS = 140;
+    private static final int STRH_SUGGESTED_BUFFER_POS = 144;
+    private static final int MOVI_SIZE_POS = 216;
+    private static final int MOVI_FOURCC_POS = 220;
+
+    private final FileChannel channel;
+    private final int fps;
+    private final ByteBuffer chunkHeader =
+        ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer index =
+        ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private int frameCount = 0;
+    private int maxFrameSize = 0;
+    private long position = HEADER_SIZE;
+
+    public MjpegAviWriter(File file, int width, int height, int fps)
+        throws IOException
+    {
+        this.fps = fps;
+        channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+        writeFully(createHeader(width, height), 0);
+    }
+
+    /**
+     * Appends the content of a JPEG file as the next frame.
+     */
+    public void addFrame(File jpegFile) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(
+            jpegFile.toPath(), StandardOpenOption.READ))
+        {
+            long size = in.size();
+            checkSize(size);
+            writeChunkHeader((int) size);
+            // -- Transfer writes at the position of the target channel.
+            channel.position(position + 8);
+            long transferred = 0;
+            while (transferred < size)
+            {
+                long count = in.transferTo(
+                    transferred, size - transferred, channel);
+                if (count <= 0)
+                {
+                    throw new IOException(
+                        "Cannot copy " + jpegFile + ", it might be truncated.");
+                }
+                transferred += count;
+            }
+            finishChunk((int) size);
+        }
+    }
+
+    /**
+     * Appends JPEG data as the next frame.
+     */
+    public void addFrame(byte[] jpegData, int length) throws IOException
+    {
+        checkSize(length);
+        writeChunkHeader(length);
+        writeFully(ByteBuffer.wrap(jpegData, 0, length), position);
+        finishChunk(length);
+    }
+
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Writes the index, and completes the header.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            ByteBuffer idx1 =
+                ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            idx1.put(fourCC("idx1")).putInt(index.position()).flip();
+            writeFully(idx1, position);
+            index.flip();
+            writeFully(index, position + 8);
+            long fileSize = position + 8 + index.limit();
+
+            long movieMs = Math.max(1, frameCount * 1000L / fps);
+            patch(RIFF_SIZE_POS, (int) (fileSize - 8));
+            patch(AVIH_MAX_BYTES_PER_SEC_POS,
+                (int) Math.min(Integer.MAX_VALUE,
+                    (position - HEADER_SIZE) * 1000L / movieMs));
+            patch(AVIH_TOTAL_FRAMES_POS, frameCount);
+            patch(AVIH_SUGGESTED_BUFFER_POS, maxFrameSize + 8);
+            patch(STRH_LENGTH_POS, frameCount);
+            patch(STRH_SUGGESTED_BUFFER_POS, maxFrameSize + 8);
+            patch(MOVI_SIZE_POS, (int) (position - MOVI_FOURCC_POS));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void checkSize(long frameSize) throws IOException
+    {
+        // -- Chunk header, padding and index entries of all frames.
+        long expected = position + 8 + frameSize + 1 +
+            16L * (frameCount + 1) + 8;
+        if (expected > MAX_FILE_SIZE)
+        {
+            throw new IOException("AVI file would exceed 2 GB.");
+        }
+    }
+
+    private void writeChunkHeader(int size) throws IOException
+    {
+        chunkHeader.clear();
+        chunkHeader.put(fourCC("00dc")).putInt(size).flip();
+        writeFully(chunkHeader, position);
+    }
+
+    private void finishChunk(int size) throws IOException
+    {
+        if (index.remaining() < 16)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            larger.put(index);
+            index = larger;
+        }
+        // -- Offsets in the index are relative to the 'movi' fourcc.
+        index.put(fourCC("00dc")).putInt(AVIIF_KEYFRAME)
+            .putInt((int) (position - MOVI_FOURCC_POS)).putInt(size);
+        position += 8 + size;
+        if ((size & 1) != 0)
+        {
+            writeFully(ByteBuffer.wrap(new byte[1]), position);
+            position += 1;
+        }
+        frameCount += 1;
+        maxFrameSize = Math.max(maxFrameSize, size);
+    }
+
+    private ByteBuffer createHeader(int width, int height)
+    {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        b.put(fourCC("RIFF")).putInt(0).put(fourCC("AVI "));
+        b.put(fourCC("LIST")).putInt(192).put(fourCC("hdrl"));
+
+        b.put(fourCC("avih")).putInt(56);
+        b.putInt(1000000 / fps);     // microseconds per frame
+        b.putInt(0);                 // max bytes per second
+        b.putInt(0);                 // padding granularity
+        b.putInt(AVIF_HASINDEX);
+        b.putInt(0);                 // total frames
+        b.putInt(0);                 // initial frames
+        b.putInt(1);                 // streams
+        b.putInt(0);                 // suggested buffer size
+        b.putInt(width).putInt(height);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        b.put(fourCC("LIST")).putInt(116).put(fourCC("strl"));
+        b.put(fourCC("strh")).putInt(56);
+        b.put(fourCC("vids")).put(fourCC("MJPG"));
+        b.putInt(0);                 // flags
+        b.putShort((short) 0).putShort((short) 0); // priority, language
+        b.putInt(0);                 // initial frames
+        b.putInt(1).putInt(fps);     // scale, rate
+        b.putInt(0);                 // start
+        b.putInt(0);                 // length
+        b.putInt(0);                 // suggested buffer size
+        b.putInt(-1);                // quality
+        b.putInt(0);                 // sample size
+        b.putShort((short) 0).putShort((short) 0)
+            .putShort((short) width).putShort((short) height);
+
+        b.put(fourCC("strf")).putInt(40);
+        b.putInt(40).putInt(width).putInt(height);
+        b.putShort((short) 1).putShort((short) 24);
+        b.put(fourCC("MJPG"));
+        b.putInt(width * height * 3);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        b.put(fourCC("LIST")).putInt(0).put(fourCC("movi"));
+        b.flip();
+        return b;
+    }
+
+    private void patch(int at, int value) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(value).flip();
+        writeFully(b, at);
+    }
+
+    private void writeFully(ByteBuffer buffer, long at) throws IOException
+    {
+        long p = at;
+        while (buffer.hasRemaining())
+        {
+            p += channel.write(buffer, p);
+        }
+    }
+
+    private static byte[] fourCC(String code)
+    {
+        return new byte[] {
+            (byte) code.charAt(0), (byte) code.charAt(1),
+            (byte) code.charAt(2), (byte) code.charAt(3) };
+    }
+}
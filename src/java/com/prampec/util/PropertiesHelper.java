@@ -24,7 +24,9 @@
 
 package com.prampec.util;
 
+import java.awt.*;
 import java.util.*;
+import java.util.List;
 
 /**
  * Helper methods to process property files.
@@ -94,6 +96,23 @@ public class PropertiesHelper
         return filteredProperties;
     }
 
+    /**
+     * Parses a dimension in the format of "[width]x[height]".
+     *
+     * @param value The value to parse.
+     * @return The parsed dimension, or null if value was null.
+     */
+    public static Dimension parseDimension(String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        String[] split = value.trim().split("x");
+        return new Dimension(
+            Integer.parseInt(split[0]), Integer.parseInt(split[1]));
+    }
+
     ///////////////////////////////////////////////////////////////////////
 
     public interface PropertyReader<T> {